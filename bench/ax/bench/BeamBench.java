@@ -0,0 +1,207 @@
+/*
+      pbox - personnal/private cloud box
+    Copyright (C) 2014 <Fabien Bavent>
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package ax.bench;
+
+import java.io.*;
+import java.util.Random;
+import ax.io.*;
+
+/**
+ * Encode and decode throughput of the Beam codec: small protocol 
+ * messages, varint-heavy streams and large file records.
+ */
+public class BeamBench
+{
+  private static final int MESSAGES = 10000;
+  private static final int FIELDS = 50000;
+  private static final int RECORD_SIZE = 64 * 1024 * 1024;
+
+  private static byte[] encodeMessages ()
+      throws IOException
+  {
+    ByteArrayOutputStream buf = new ByteArrayOutputStream ();
+    BeamOut out = new BeamOut (buf);
+    for (int i = 0; i < MESSAGES; ++i) {
+      out.writeOpenObject ("update");
+      out.writeString ("hash", "4f1c2a9de0b35c7a18e4b2d7c9f6a03e51b8d427");
+      out.writeString ("url", "./photos/2014/IMG_" + i + ".jpg");
+      out.writeString ("parent", "9a0b4c3d2e1f5a6b7c8d9e0f1a2b3c4d5e6f7a8b");
+      out.writeInteger ("version", i);
+      out.writeString ("type", "File");
+      out.writeCloseObject ();
+      out.flush ();
+    }
+    return buf.toByteArray ();
+  }
+
+  private static long decodeMessages (byte[] data)
+      throws Exception
+  {
+    BeamIn in = new BeamIn (new ByteArrayInputStream (data));
+    long sum = 0;
+    for (int i = 0; i < MESSAGES; ++i) {
+      if (i > 0)
+        in.next ();
+      in.readLabel ();
+      in.readObject ();
+      String label;
+      while ((label = in.readLabel ()) != null) {
+        if (label.equals ("version"))
+          sum += in.readInteger ();
+        else
+          in.readPass ();
+      }
+    }
+    return sum;
+  }
+
+  private static byte[] encodeVarints ()
+      throws IOException
+  {
+    Random rnd = new Random (42);
+    ByteArrayOutputStream buf = new ByteArrayOutputStream ();
+    BeamOut out = new BeamOut (buf);
+    out.writeOpenCollection ("fields");
+    for (int i = 0; i < FIELDS; ++i) {
+      byte[] data = new byte[rnd.nextInt (300)];
+      out.writeBytes ("f" + (i % 977), data);
+    }
+    out.writeCloseCollection ();
+    out.flush ();
+    return buf.toByteArray ();
+  }
+
+  private static void decodeVarints (byte[] data)
+      throws Exception
+  {
+    BeamIn in = new BeamIn (new ByteArrayInputStream (data));
+    in.readLabel ();
+    in.readCollection ();
+    while (in.readLabel () != null)
+      in.readPass ();
+  }
+
+  private static File makeContent (File dir)
+      throws IOException
+  {
+    // Half random, half text-like so codecs have something to do
+    Random rnd = new Random (7);
+    File fp = new File (dir, "content.bin");
+    OutputStream out = new BufferedOutputStream (new FileOutputStream (fp));
+    byte[] line = "Lorem ipsum dolor sit amet, consectetur adipiscing elit\n".getBytes();
+    byte[] block = new byte[4096];
+    for (int i = 0; i < RECORD_SIZE / block.length; ++i) {
+      if (i % 2 == 0) {
+        rnd.nextBytes (block);
+      } else {
+        for (int j = 0; j < block.length; ++j)
+          block[j] = line[(j + i) % line.length];
+      }
+      out.write (block);
+    }
+    out.close ();
+    return fp;
+  }
+
+  private static String writeRecord (File rec, File content, BeamCodec codec)
+      throws IOException
+  {
+    BeamOut out = new BeamOut (rec, codec);
+    out.setLeafSize (TreeHash.LEAF_SIZE);
+    out.writeOpenObject ("blob");
+    out.writeFile ("content", content);
+    out.writeCloseObject ();
+    String hash = out.commit ();
+    out.close ();
+    return hash;
+  }
+
+  private static void readRecord (File rec, File dest)
+      throws Exception
+  {
+    BeamIn in = new BeamIn (rec);
+    in.readLabel ();
+    in.readObject ();
+    in.readLabel ();
+    in.readFile (dest);
+    in.readLabel ();
+    in.commit ();
+    in.close ();
+  }
+
+  public static void main (String[] args)
+      throws Exception
+  {
+    Bench bench = new Bench (args);
+
+    final byte[] messages = encodeMessages ();
+    bench.run ("beam.encode.message", MESSAGES, new Bench.Task () {
+      public long run () throws Exception {
+        return encodeMessages ().length;
+      }
+    });
+    bench.run ("beam.decode.message", MESSAGES, new Bench.Task () {
+      public long run () throws Exception {
+        decodeMessages (messages);
+        return messages.length;
+      }
+    });
+
+    final byte[] varints = encodeVarints ();
+    bench.run ("beam.encode.varint", FIELDS, new Bench.Task () {
+      public long run () throws Exception {
+        return encodeVarints ().length;
+      }
+    });
+    bench.run ("beam.decode.varint", FIELDS, new Bench.Task () {
+      public long run () throws Exception {
+        decodeVarints (varints);
+        return varints.length;
+      }
+    });
+
+    if (!bench.accept ("beam.record"))
+      return;
+
+    final File dir = java.nio.file.Files.createTempDirectory ("pbox-bench").toFile();
+    final File content = makeContent (dir);
+    final File rec = new File (dir, "record");
+    final File dest = new File (dir, "extract.bin");
+    String[] names = { "deflate", "lz", "none" };
+    for (String name : names) {
+      final BeamCodec codec = BeamCodec.forName (name);
+      bench.run ("beam.record.write." + name, 1, new Bench.Task () {
+        public long run () throws Exception {
+          writeRecord (rec, content, codec);
+          return RECORD_SIZE;
+        }
+      });
+      bench.run ("beam.record.read." + name, 1, new Bench.Task () {
+        public long run () throws Exception {
+          readRecord (rec, dest);
+          return RECORD_SIZE;
+        }
+      });
+    }
+
+    for (File fp : dir.listFiles ())
+      fp.delete ();
+    dir.delete ();
+  }
+}
+
@@ -0,0 +1,113 @@
+/*
+      pbox - personnal/private cloud box
+    Copyright (C) 2014 <Fabien Bavent>
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package ax.bench;
+
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import ax.util.StopWatch;
+
+/**
+ * Small benchmark harness: each case runs a few warmup iterations, then
+ * reports time, throughput and bytes allocated by the calling thread per 
+ * operation. Output of the code under test is muted while it runs.
+ *
+ * Usage: java -cp obj ax.bench.BeamBench [-w WARMUP] [-i ITERATIONS] [FILTER]
+ */
+public class Bench
+{
+  public interface Task
+  {
+    /** Run one iteration, return the count of bytes processed or 0. */
+    public long run () throws Exception;
+  }
+
+  private static final com.sun.management.ThreadMXBean threads = 
+      (com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean();
+
+  private int warmup = 3;
+  private int iterations = 5;
+  private String filter = null;
+  private PrintStream console;
+  private PrintStream muted;
+
+  public Bench (String[] args)
+  {
+    for (int i = 0; i < args.length; ++i) {
+      if (args[i].equals ("-w"))
+        warmup = Integer.parseInt (args[++i]);
+      else if (args[i].equals ("-i"))
+        iterations = Integer.parseInt (args[++i]);
+      else
+        filter = args[i];
+    }
+
+    console = System.out;
+    muted = new PrintStream (new OutputStream () {
+      public void write (int b) {}
+      public void write (byte[] b, int off, int len) {}
+    });
+    console.format ("%-28s %12s %12s %12s\n", "Benchmark", "ns/op", "MB/s", "alloc B/op");
+  }
+
+  public boolean accept (String name)
+  {
+    return filter == null || name.contains (filter);
+  }
+
+  /**
+   * Run a case where each iteration does ops operations.
+   */
+  public void run (String name, int ops, Task task)
+      throws Exception
+  {
+    if (!accept (name))
+      return;
+
+    PrintStream out = System.out;
+    PrintStream err = System.err;
+    System.setOut (muted);
+    System.setErr (muted);
+    try {
+      for (int i = 0; i < warmup; ++i)
+        task.run ();
+
+      long tid = Thread.currentThread().getId();
+      long nanos = 0;
+      long bytes = 0;
+      long alloc = 0;
+      StopWatch chrono = new StopWatch ();
+      for (int i = 0; i < iterations; ++i) {
+        long mem = threads.getThreadAllocatedBytes (tid);
+        chrono.start ();
+        bytes += task.run ();
+        chrono.stop ();
+        alloc += threads.getThreadAllocatedBytes (tid) - mem;
+        nanos += chrono.getNanos ();
+      }
+
+      long count = (long)ops * iterations;
+      double mbs = bytes == 0 ? 0 : bytes / (nanos / 1e9) / (1024 * 1024);
+      console.format ("%-28s %12.1f %12.1f %12d\n", name, 
+          (double)nanos / count, mbs, alloc / count);
+    } finally {
+      System.setOut (out);
+      System.setErr (err);
+    }
+  }
+}
+
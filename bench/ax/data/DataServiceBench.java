@@ -0,0 +1,181 @@
+/*
+      pbox - personnal/private cloud box
+    Copyright (C) 2014 <Fabien Bavent>
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package ax.data;
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import ax.bench.Bench;
+
+/**
+ * Threads standing for the WatchService, the WebService and the 
+ * DataService workers hit the entry index of a million-entry tree at 
+ * once. Entries are not backed by files, only the index is measured.
+ *
+ * Usage: java -Xmx2g -cp obj ax.data.DataServiceBench
+ */
+public class DataServiceBench
+{
+  private static final int ENTRIES = 1000 * 1000;
+  private static final int THREADS = 4;
+  private static final int OPS = 200 * 1000;
+
+  private static Path pathOf (int i)
+  {
+    return Paths.get ("./dir" + (i % 1000) + "/file" + i + ".dat");
+  }
+
+  /**
+   * Run `tasks`, one per thread, and wait for them all.
+   */
+  private static void parallel (ExecutorService pool, List<Callable<Void>> tasks)
+      throws Exception
+  {
+    for (Future<Void> f : pool.invokeAll (tasks))
+      f.get ();
+  }
+
+  private static Callable<Void> lookups (final DataService ds, final int seed)
+  {
+    return new Callable<Void> () {
+      public Void call () {
+        Random rnd = new Random (seed);
+        for (int i = 0; i < OPS; ++i)
+          ds.getFileEntry (pathOf (rnd.nextInt (ENTRIES)));
+        return null;
+      }
+    };
+  }
+
+  /** Like the watcher, a file changed on disk. */
+  private static Callable<Void> updates (final DataService ds, final int seed)
+  {
+    return new Callable<Void> () {
+      public Void call () {
+        Random rnd = new Random (seed);
+        for (int i = 0; i < OPS; ++i) {
+          Path path = pathOf (rnd.nextInt (ENTRIES));
+          ds.updateFileEntry (ds.getFileEntry (path), path);
+        }
+        return null;
+      }
+    };
+  }
+
+  /** Like the web service, check the load then take a new entry. */
+  private static Callable<Void> externs (final DataService ds, final Path top, final int seed)
+  {
+    return new Callable<Void> () {
+      public Void call () {
+        for (int i = 0; i < OPS; ++i) {
+          Path path = pathOf (ENTRIES + seed * OPS + i);
+          ds.getQueueDepth ();
+          if (ds.getFileEntry (path) == null)
+            ds.addFileEntry (new FileEntry (path, null, null, 1, 0, "File", top), path);
+        }
+        return null;
+      }
+    };
+  }
+
+  /** Like a worker once a delete is done, drop the entries. */
+  private static Callable<Void> removes (final DataService ds, final int seed)
+  {
+    return new Callable<Void> () {
+      public Void call () {
+        for (int i = 0; i < OPS; ++i) {
+          Path path = pathOf (ENTRIES + seed * OPS + i);
+          FileEntry en = ds.getFileEntry (path);
+          if (en != null)
+            ds.remove (en, path);
+        }
+        return null;
+      }
+    };
+  }
+
+  public static void main (String[] args)
+      throws Exception
+  {
+    Bench bench = new Bench (args);
+    final Path top = Files.createTempDirectory ("pbox-bench");
+    final DirectoryMirror dm = new DirectoryMirror (top);
+    final DataService ds = dm.dataService;
+    final ExecutorService pool = Executors.newFixedThreadPool (THREADS);
+
+    final List<FileEntry> entries = new ArrayList<FileEntry> (ENTRIES);
+    for (int i = 0; i < ENTRIES; ++i)
+      entries.add (new FileEntry (pathOf (i), top));
+
+    bench.run ("index.add", ENTRIES, new Bench.Task () {
+      public long run () throws Exception {
+        List<Callable<Void>> tasks = new ArrayList<Callable<Void>> ();
+        for (int t = 0; t < THREADS; ++t) {
+          final int first = t;
+          tasks.add (new Callable<Void> () {
+            public Void call () {
+              for (int i = first; i < ENTRIES; i += THREADS)
+                ds.addFileEntry (entries.get (i), pathOf (i));
+              return null;
+            }
+          });
+        }
+        parallel (pool, tasks);
+        return 0;
+      }
+    });
+
+    bench.run ("index.lookup", THREADS * OPS, new Bench.Task () {
+      public long run () throws Exception {
+        List<Callable<Void>> tasks = new ArrayList<Callable<Void>> ();
+        for (int t = 0; t < THREADS; ++t)
+          tasks.add (lookups (ds, t));
+        parallel (pool, tasks);
+        return 0;
+      }
+    });
+
+    bench.run ("index.update", THREADS * OPS, new Bench.Task () {
+      public long run () throws Exception {
+        List<Callable<Void>> tasks = new ArrayList<Callable<Void>> ();
+        for (int t = 0; t < THREADS; ++t)
+          tasks.add (updates (ds, t));
+        parallel (pool, tasks);
+        return 0;
+      }
+    });
+
+    // Watcher, web service and workers all at once
+    bench.run ("index.mixed", THREADS * OPS, new Bench.Task () {
+      public long run () throws Exception {
+        List<Callable<Void>> tasks = new ArrayList<Callable<Void>> ();
+        tasks.add (updates (ds, 0));
+        tasks.add (lookups (ds, 1));
+        tasks.add (externs (ds, top, 0));
+        tasks.add (removes (ds, 0));
+        parallel (pool, tasks);
+        return 0;
+      }
+    });
+
+    pool.shutdown ();
+    new File (top.toString(), ".pbox").delete ();
+    top.toFile().delete ();
+  }
+}
@@ -0,0 +1,111 @@
+/*
+      pbox - personnal/private cloud box
+    Copyright (C) 2014 <Fabien Bavent>
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package ax.data;
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+import ax.bench.Bench;
+
+/**
+ * Full save then extract round trips of FileEntry over a synthetic tree 
+ * of small files and a few large ones.
+ */
+public class FileEntryBench
+{
+  private static final int SMALL_FILES = 200;
+  private static final int LARGE_FILES = 2;
+
+  private static long makeTree (Path top, List<Path> files)
+      throws IOException
+  {
+    Random rnd = new Random (11);
+    long total = 0;
+    new File (top.toFile(), ".pbox").mkdirs();
+    for (int i = 0; i < SMALL_FILES + LARGE_FILES; ++i) {
+      int lg = i < SMALL_FILES ? 4096 + rnd.nextInt (60 * 1024) : 12 * 1024 * 1024;
+      byte[] data = new byte[lg];
+      for (int j = 0; j < lg; j += 64)
+        data[j] = (byte)rnd.nextInt (256);
+      Path path = Paths.get ("./dir" + (i % 10) + "/file" + i + ".dat");
+      File fp = new File (top.toString() + "/" + path.toString());
+      fp.getParentFile().mkdirs();
+      Files.write (fp.toPath(), data);
+      files.add (path);
+      total += lg;
+    }
+    return total;
+  }
+
+  private static void clean (File dir)
+  {
+    File[] list = dir.listFiles ();
+    if (list != null) {
+      for (File fp : list)
+        clean (fp);
+    }
+    dir.delete ();
+  }
+
+  public static void main (String[] args)
+      throws Exception
+  {
+    Bench bench = new Bench (args);
+    final Path top = Files.createTempDirectory ("pbox-bench");
+    final List<Path> files = new ArrayList<Path> ();
+    final long total = makeTree (top, files);
+    final List<FileEntry> entries = new ArrayList<FileEntry> ();
+
+    bench.run ("entry.save", files.size(), new Bench.Task () {
+      public long run () throws Exception {
+        entries.clear ();
+        for (Path path : files) {
+          FileEntry en = new FileEntry (path, top);
+          en.save ();
+          entries.add (en);
+        }
+        return total;
+      }
+    });
+
+    bench.run ("entry.extract", files.size(), new Bench.Task () {
+      public long run () throws Exception {
+        for (FileEntry en : entries) {
+          en.status = BlobStatus.InStore;
+          en.extract ();
+        }
+        return total;
+      }
+    });
+
+    bench.run ("entry.roundtrip", files.size(), new Bench.Task () {
+      public long run () throws Exception {
+        for (Path path : files) {
+          FileEntry en = new FileEntry (path, top);
+          en.save ();
+          en.status = BlobStatus.InStore;
+          en.extract ();
+        }
+        return 2 * total;
+      }
+    });
+
+    clean (top.toFile());
+  }
+}
+
@@ -0,0 +1,188 @@
+/*
+      pbox - personnal/private cloud box
+    Copyright (C) 2014 <Fabien Bavent>
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package ax.data;
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import ax.bench.Bench;
+import ax.net.BeamMux;
+import ax.net.BeamSocket;
+
+/**
+ * Concurrent clients against the WebService server modes: the single 
+ * threaded loop (one request per connection), a thread or a virtual 
+ * thread per connection, and the NIO event loops. Last, all the clients
+ * share one multiplexed connection, a stream per request.
+ */
+public class WebServiceBench
+{
+  private static final int CLIENTS = 32;
+  private static final int REQUESTS = 20;
+  private static final int RECORD_SIZE = 256 * 1024;
+  private static final String HASH = "00112233445566778899aabbccddeeff00112233";
+
+  private static int nextPort = 9860;
+
+  private static int start (DirectoryMirror dm, String mode)
+      throws InterruptedException
+  {
+    final WebService ws = new WebService (dm);
+    int port = nextPort++;
+    ws.setPort (port);
+    ws.setServerMode (mode);
+    Thread th = new Thread (new Runnable () {
+      public void run () {
+        ws.listen ();
+      }
+    });
+    th.setDaemon (true);
+    th.start ();
+    Thread.sleep (300);
+    return port;
+  }
+
+  private static void request (BeamSocket beam, File tmp)
+      throws Exception
+  {
+    if (tmp == null) {
+      beam.out.writeString ("ping", null);
+      beam.send ();
+      beam.in.readLabel ();
+      beam.in.readPass ();
+      return;
+    }
+
+    beam.out.writeOpenObject ("request");
+    beam.out.writeString ("hash", HASH);
+    beam.out.writeCloseObject ();
+    beam.send ();
+    beam.in.readLabel ();
+    beam.in.readObject ();
+    long length = -1;
+    String label;
+    while ((label = beam.in.readLabel ()) != null) {
+      if (label.equals ("length"))
+        length = beam.in.readInteger ();
+      else
+        beam.in.readPass ();
+    }
+    beam.in.readPayload (tmp, length);
+  }
+
+  /**
+   * Every client sends its requests in sequence, on one connection or on
+   * a new connection each time, or on new streams of `mux`.
+   */
+  private static long clients (ExecutorService pool, final int port, 
+      final BeamMux mux, final boolean reconnect, final boolean record)
+      throws Exception
+  {
+    List<Future<Long>> res = new ArrayList<Future<Long>> ();
+    for (int i = 0; i < CLIENTS; ++i) {
+      res.add (pool.submit (new Callable<Long> () {
+        public Long call () throws Exception {
+          File tmp = record ? File.createTempFile ("pbox", ".raw") : null;
+          BeamSocket beam = null;
+          try {
+            for (int k = 0; k < REQUESTS; ++k) {
+              if (beam == null && mux != null)
+                beam = mux.open ();
+              else if (beam == null)
+                beam = BeamSocket.connectTo ("localhost", port);
+              request (beam, tmp);
+              if (reconnect) {
+                beam.close ();
+                beam = null;
+              }
+            }
+          } finally {
+            if (beam != null)
+              beam.close ();
+            if (tmp != null)
+              tmp.delete ();
+          }
+          return record ? (long)REQUESTS * RECORD_SIZE : 0L;
+        }
+      }));
+    }
+
+    long bytes = 0;
+    for (Future<Long> f : res)
+      bytes += f.get ();
+    return bytes;
+  }
+
+  public static void main (String[] args)
+      throws Exception
+  {
+    Bench bench = new Bench (args);
+    Path top = Files.createTempDirectory ("pbox-bench");
+    DirectoryMirror dm = new DirectoryMirror (top);
+    File fp = FileEntry.buildFileRecord (top, HASH);
+    fp.getParentFile().mkdirs();
+    byte[] data = new byte[RECORD_SIZE];
+    new Random (5).nextBytes (data);
+    Files.write (fp.toPath(), data);
+
+    final ExecutorService pool = Executors.newFixedThreadPool (CLIENTS);
+    String[] modes = { "single", "thread", "virtual", "nio" };
+    for (final String mode : modes) {
+      if (!bench.accept ("server." + mode + ".ping") 
+          && !bench.accept ("server." + mode + ".record"))
+        continue;
+
+      final int port = start (dm, mode);
+      final boolean reconnect = mode.equals ("single");
+      bench.run ("server." + mode + ".ping", CLIENTS * REQUESTS, new Bench.Task () {
+        public long run () throws Exception {
+          return clients (pool, port, null, reconnect, false);
+        }
+      });
+
+      bench.run ("server." + mode + ".record", CLIENTS * REQUESTS, new Bench.Task () {
+        public long run () throws Exception {
+          return clients (pool, port, null, reconnect, true);
+        }
+      });
+    }
+
+    if (bench.accept ("server.mux.ping") || bench.accept ("server.mux.record")) {
+      final int port = start (dm, "thread");
+      final BeamMux mux = BeamMux.connectTo ("localhost", port, 3000);
+      bench.run ("server.mux.ping", CLIENTS * REQUESTS, new Bench.Task () {
+        public long run () throws Exception {
+          return clients (pool, port, mux, false, false);
+        }
+      });
+
+      bench.run ("server.mux.record", CLIENTS * REQUESTS, new Bench.Task () {
+        public long run () throws Exception {
+          return clients (pool, port, mux, false, true);
+        }
+      });
+      mux.close ();
+    }
+
+    pool.shutdown ();
+    fp.delete ();
+    // The servers are still listening
+    System.exit (0);
+  }
+}
@@ -20,77 +20,266 @@ package ax.data;
 import java.nio.file.*;
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 
 public class DataService implements Runnable
 {
+  // Local changes are handled once a file stayed still that long
+  private static final long DEBOUNCE = 1000;
+  // First delay after an action did not go through, doubled each time
+  private static final long RETRY_DELAY = 1000;
+  private static final long MAX_RETRY_DELAY = 60000;
+  private static final long REPORT_DELAY = 3500;
+  // Reloads mostly wait for the network, and deletes for the disk
+  private static final int IO_WORKERS = 4;
+
   private DirectoryMirror dirMirror;
   private Path topDir;
 
-  private Hashtable<Path, FileEntry> entries;
-  private HashSet<FileEntry> needUpdate;
+  // The watcher, the web service and the workers all go through these 
+  // maps, none of them takes a global lock.
+  private ConcurrentHashMap<Path, FileEntry> entries;
+  private Set<FileEntry> needUpdate;
+  // The next wakeup of each entry, and the retries that failed in a row
+  private DelayQueue<Task> queue;
+  private ConcurrentHashMap<FileEntry, Task> scheduled;
+  private ConcurrentHashMap<FileEntry, Integer> failures;
+
+  // Saves and extracts hash and compress, they get one thread per core.
+  // An entry is handed to one worker at a time, it is mapped to TRUE when
+  // a task came due meanwhile and must run again once it is done.
+  private int workers = Runtime.getRuntime().availableProcessors();
+  private ExecutorService savers;
+  private ExecutorService fetchers;
+  private ConcurrentHashMap<FileEntry, Boolean> running;
+
+  // Entries saved on a previous run stay in the table until used, those
+  // the scan did not find were deleted meanwhile
+  private EntryIndex index;
+  private EntryTable table;
+
+  /**
+   * Wake an entry up once its deadline is past.
+   */
+  private static class Task implements Delayed
+  {
+    final FileEntry entry;
+    final long when;
+
+    Task (FileEntry entry, long when)
+    {
+      this.entry = entry;
+      this.when = when;
+    }
+
+    public long getDelay (TimeUnit unit)
+    {
+      return unit.convert (when - System.currentTimeMillis(), TimeUnit.MILLISECONDS);
+    }
+
+    public int compareTo (Delayed o)
+    {
+      long d = when - ((Task)o).when;
+      return d < 0 ? -1 : (d > 0 ? 1 : 0);
+    }
+  }
 
   public DataService (DirectoryMirror dm)
   {
     this.dirMirror = dm;
     this.topDir = dm.getTopDir();
-    this.entries = new Hashtable<Path, FileEntry> ();
-    this.needUpdate = new HashSet<FileEntry> ();
+    this.entries = new ConcurrentHashMap<Path, FileEntry> ();
+    this.needUpdate = Collections.newSetFromMap (new ConcurrentHashMap<FileEntry, Boolean> ());
+    this.queue = new DelayQueue<Task> ();
+    this.scheduled = new ConcurrentHashMap<FileEntry, Task> ();
+    this.failures = new ConcurrentHashMap<FileEntry, Integer> ();
+    this.running = new ConcurrentHashMap<FileEntry, Boolean> ();
+    this.table = new EntryTable ();
+  }
+
+  /**
+   * Read the entries saved on the previous run, before the tree is 
+   * scanned.
+   */
+  public void load ()
+  {
+    index = new EntryIndex (topDir);
+    index.load (table);
+    if (table.size() > 0)
+      index.compact (entries.values(), table);
+    System.out.format ("[Trace] Loaded %d entries from the index\n", table.size());
+  }
+
+  /**
+   * The scan found this path, true if it did not change since it was 
+   * saved.
+   */
+  public boolean check (Path path)
+  {
+    FileEntry file = entries.get (path);
+    if (file != null)
+      return file.isUnchanged ();
+    return table.check (path, new File (topDir.toString() + "/" + path.toString()));
+  }
+
+  /**
+   * Entries of the index the scan did not find were deleted while we 
+   * were not watching.
+   */
+  public void sweep ()
+  {
+    for (Path path : table.unchecked ()) {
+      System.out.format ("[Debug] Deleted while stopped: %s\n", path);
+      FileEntry file = getFileEntry (path);
+      if (file != null)
+        rmLocalFileEntry (file, path);
+    }
+  }
+
+  private void compact ()
+  {
+    int parked = 0;
+    for (FileEntry file : entries.values()) {
+      if (park (file))
+        parked++;
+    }
+    if (parked > 0)
+      System.out.format ("[Debug] Parked %d idle entries\n", parked);
+    index.compact (entries.values(), table);
+  }
+
+  /**
+   * Move an idle saved entry back into the table. An entry some thread 
+   * holds is skipped, one parked meanwhile is found again by lockLive.
+   */
+  private boolean park (FileEntry file)
+  {
+    if (file.status != BlobStatus.Saved || file.hash == null || 
+        scheduled.containsKey (file) || running.containsKey (file) || 
+        !file.trylock ())
+      return false;
+    try {
+      if (file.status != BlobStatus.Saved || needUpdate.contains (file))
+        return false;
+      synchronized (table) {
+        if (!entries.remove (file.path, file))
+          return false;
+        table.put (file.path.toString(), file.hash, file.parent, file.version, 
+            file.length, file.mtime, file.type);
+        file.status = BlobStatus.Parked;
+        return true;
+      }
+    } finally {
+      file.unlock ();
+    }
+  }
+
+  /**
+   * Lock the entry, or the one which replaced it if it was parked.
+   */
+  private FileEntry lockLive (FileEntry file, Path path)
+  {
+    for (;;) {
+      file.lock ();
+      if (file.status != BlobStatus.Parked)
+        return file;
+      file.unlock ();
+      FileEntry live = getFileEntry (path);
+      if (live == null) {
+        file.lock ();
+        return file;
+      }
+      file = live;
+    }
+  }
+
+  private void persist (FileEntry file)
+  {
+    if (index != null && file.status == BlobStatus.Saved && 
+        index.put (file, entries.size() + table.size()))
+      compact ();
+  }
+
+  /**
+   * Number of files saved or extracted at once, to set before start.
+   */
+  public void setWorkers (int count)
+  {
+    this.workers = Math.max (1, count);
   }
 
   public FileEntry getFileEntry (Path path)
   {
-    synchronized (entries) {
-      return entries.get (path);  
+    FileEntry file = entries.get (path);  
+    if (file != null || table.size() == 0)
+      return file;
+
+    // First use of an entry loaded from the index
+    synchronized (table) {
+      file = entries.get (path);
+      if (file == null) {
+        file = table.take (path, topDir);
+        if (file != null)
+          entries.put (path, file);
+      }
     }
+    return file;
+  }
+
+  /**
+   * Number of entries waiting for some work.
+   */
+  public int getQueueDepth ()
+  {
+    return needUpdate.size();
   }
 
   public void updateFileEntry (FileEntry file, Path path)
   {
-    file.lock (); // Prevent watcher to mess with it
+    file = lockLive (file, path); // Prevent watcher to mess with it
 
     if (file.invalidate ()) {
-      synchronized (needUpdate) {
-        needUpdate.add (file);
-      }
+      submit (file);
     }
     file.unlock();
   }
 
-  public void updateExFileEntry (FileEntry file, String hash, String parent, long version)
+  public void updateExFileEntry (FileEntry file, String hash, String parent, long version, long length)
   {
-    file.lock (); // Prevent watcher to mess with it
+    file = lockLive (file, file.path); // Prevent watcher to mess with it
 
-    if (file.extern (hash, parent, version)) {
-      synchronized (needUpdate) {
-        needUpdate.add (file);
-      }
+    if (file.extern (hash, parent, version, length)) {
+      submit (file);
     }
     file.unlock();
   }
 
   public void rmLocalFileEntry (FileEntry file, Path path)
   {
-    file.localdelete (this.dirMirror.webService);
+    file.localdelete (this.dirMirror.outbox);
     rmFileEntry (file, path);
   }
 
   public void rmFileEntry (FileEntry file, Path path)
   {
-    file.lock (); // Prevent watcher to mess with it
+    file = lockLive (file, path); // Prevent watcher to mess with it
 
     if (file.delete ()) {
-      synchronized (needUpdate) {
-        needUpdate.add (file);
-      }
+      submit (file);
     }
     file.unlock();
   }
 
   public void remove (FileEntry file, Path path)
   {
-    synchronized (entries) {
-      entries.remove (path);  
-    }
+    if (entries.remove (path, file) && index != null && 
+        index.remove (path, entries.size() + table.size()))
+      compact ();
   }
 
   public void addFileEntry (FileEntry file, Path path)
@@ -98,59 +287,187 @@ public class DataService implements Runnable
     System.out.format("[Trace] register on db -> %s\n", path);
     file.lock (); // Prevent watcher to mess with it
 
-    synchronized (entries) {
-      entries.put (path, file);  
-    }
+    entries.put (path, file);  
+    submit (file);
+    file.unlock();
+  }
+
+  /**
+   * Background loads report to the entry, then wake it up to be 
+   * extracted, or retried later.
+   */
+  ILoadable loader (final FileEntry file)
+  {
+    return new ILoadable () {
+      public Path getPath () 
+      {
+        return file.getPath ();
+      }
+
+      public void laodFinish (boolean success, String message) 
+      {
+        file.laodFinish (success, message);
+        if (success)
+          succeed (file);
+        else
+          retry (file);
+      }
+    };
+  }
 
-    synchronized (needUpdate) {
-      needUpdate.add (file);
+  /**
+   * Queue an entry which has some work, must be called with the entry 
+   * locked.
+   */
+  private void submit (FileEntry file)
+  {
+    needUpdate.add (file);
+    schedule (file, deadline (file));
+  }
+
+  /**
+   * Local updates wait for the file to stay still, anything else is
+   * handled right away.
+   */
+  private long deadline (FileEntry file)
+  {
+    if (file.status == BlobStatus.UpdateLocal)
+      return file.lastUpdate + DEBOUNCE;
+    return System.currentTimeMillis();
+  }
+
+  /**
+   * Wake the entry at `when`, unless it is already due before. A later
+   * deadline is checked again once the first one is reached.
+   */
+  private void schedule (FileEntry file, long when)
+  {
+    Task task = new Task (file, when);
+    for (;;) {
+      Task prev = scheduled.get (file);
+      if (prev != null && prev.when <= when)
+        return;
+      if (prev == null ? scheduled.putIfAbsent (file, task) == null :
+          scheduled.replace (file, prev, task))
+        break;
     }
+    queue.add (task);
+  }
 
-    file.unlock();
+  private void succeed (FileEntry file)
+  {
+    failures.remove (file);
+    schedule (file, System.currentTimeMillis());
   }
 
+  private void retry (FileEntry file)
+  {
+    // Only one worker handles an entry, failures are not raced
+    Integer count = failures.get (file);
+    int n = count == null ? 0 : count;
+    failures.put (file, n + 1);
+    long delay = Math.min (MAX_RETRY_DELAY, RETRY_DELAY << Math.min (n, 16));
+    schedule (file, System.currentTimeMillis() + delay);
+  }
 
-  public void  processFiles() 
+  private void process (FileEntry fp)
+  {
+    fp.lock ();
+    try {
+      long when = deadline (fp);
+      if (when > System.currentTimeMillis()) {
+        schedule (fp, when);
+        return;
+      }
+
+      // Loading entries are woken up by their loader
+      if (!fp.somethingToDo ())
+        return;
+
+      BlobStatus st = fp.status;
+      if (fp.doSomething (this.dirMirror)) {
+        needUpdate.remove (fp);
+        failures.remove (fp);
+        persist (fp);
+      } else if (fp.status == st) {
+        retry (fp);
+      } else if (fp.somethingToDo ()) {
+        succeed (fp);
+      }
+    } finally {
+      fp.unlock ();
+    }
+  }
+
+  private void report ()
   {
-    int max = 300;
+    System.out.format ("[Debug] DataService, List %d\n", needUpdate.size());
+    for (FileEntry e : needUpdate) {
+      System.out.format ("  DS:: %s\n", e);
+    }
+  }
 
+  public void  processFiles() 
+  {
     for (;;) {
-      FileEntry fp = null;
-      Date timer = new Date();
-      timer.setTime (timer.getTime() - (3L * 1000L * 1000L));
-
-      synchronized (needUpdate) {
-        for (FileEntry e : needUpdate) {
-          if (e.somethingToDo(timer) && e.lock ()) {
-            fp = e;
-            break;
-          }
-        }
+      Task task;
+      try {
+        task = queue.poll (REPORT_DELAY, TimeUnit.MILLISECONDS);
+      } catch (InterruptedException ex) {
+        break;
       }
 
-      if (fp != null) {
-        if (fp.doSomething (timer, this.dirMirror)) {
-          synchronized (needUpdate) {
-            needUpdate.remove (fp);
-          }
-        }
-        fp.unlock ();
+      if (task == null) {
+        report ();
+        continue;
       }
 
-      if (fp == null || --max <= 0) {
+      if (scheduled.remove (task.entry, task) && start (task.entry))
+        dispatch (task.entry);
+    }
+
+    savers.shutdown ();
+    fetchers.shutdown ();
+  }
+
+  private void dispatch (final FileEntry fp)
+  {
+    BlobStatus st = fp.status;
+    ExecutorService pool = (st == BlobStatus.UpdateExtern || 
+        st == BlobStatus.Deleted) ? fetchers : savers;
+    pool.execute (new Runnable () {
+      public void run () {
         try {
-          Thread.sleep (3500);
-          System.out.format ("[Debug] DataService, List %d\n", needUpdate.size());
-
-          synchronized (needUpdate) {
-            for (FileEntry e : needUpdate) {
-              System.out.format ("  DS:: %s\n", e);
-            }
-          }
-        } catch (InterruptedException ex) {
+          process (fp);
+        } finally {
+          done (fp);
         }
-        max = 300;
-        continue;
+      }
+    });
+  }
+
+  /**
+   * Mark the entry as running, or to run again if it is already.
+   */
+  private boolean start (FileEntry fp)
+  {
+    for (;;) {
+      Boolean prev = running.putIfAbsent (fp, Boolean.FALSE);
+      if (prev == null)
+        return true;
+      if (prev || running.replace (fp, Boolean.FALSE, Boolean.TRUE))
+        return false;
+    }
+  }
+
+  private void done (FileEntry fp)
+  {
+    for (;;) {
+      if (running.remove (fp, Boolean.FALSE))
+        return;
+      if (running.remove (fp, Boolean.TRUE)) {
+        schedule (fp, System.currentTimeMillis());
+        return;
       }
     }
   }
@@ -159,6 +476,8 @@ public class DataService implements Runnable
   public void run () 
   {
     Thread.currentThread().setName ("DataService["+this.topDir.toString()+"]");
+    this.savers = Executors.newFixedThreadPool (workers);
+    this.fetchers = Executors.newFixedThreadPool (IO_WORKERS);
     System.out.println ("[Trace] DataService started");
     this.processFiles();
     System.out.println ("[Trace] DataService stopped");
@@ -18,6 +18,8 @@
 package ax.data;
 
 import ax.util.ProgOptions;
+import ax.util.TokenBucket;
+import ax.io.BeamCodec;
 import java.nio.file.*;
 import java.io.*;
 import java.util.*;
@@ -31,18 +33,20 @@ public class DirectoryMirror
   public final DataService dataService;
   public final WatchService watchService;
   public final WebService webService;
+  public final Outbox outbox;
 
   public DirectoryMirror (Path path) 
       throws IOException
   {
     this.path = path;
-    // TODO LoadOldStatus
 
     this.dataService = new DataService(this);
+    this.dataService.load ();
     this.watchService = new WatchService(this);
     this.webService = new WebService(this);
+    this.outbox = new Outbox(this.webService);
 
-    // TODO What about non checked ! (meaning they have been deleted from local)
+    this.dataService.sweep ();
 
   }
 
@@ -98,6 +102,7 @@ public class DirectoryMirror
     new Thread(this.webService).start();
     new Thread(this.watchService).start();
     new Thread(this.dataService).start();
+    new Thread(this.outbox).start();
   }
 
 
@@ -112,6 +117,13 @@ public class DirectoryMirror
     po.addOption ('s', "server", "SERVER", "Open a server");
     po.addOption ('b', "bare", null, "Just caching, data are not extracted");
     po.addOption ('n', "no-version", null, "Try to clean previous version to spare space");
+    po.addOption ('z', "codec", "CODEC", "Compression of stored records: none, lz, deflate[:LEVEL]");
+    po.addOption ('m', "mode", "MODE", "How connections are served: single, thread, virtual, nio");
+    po.addOption ('c', "max-requests", "COUNT", "Maximum of requests served at once");
+    po.addOption ('x', "plain", null, "One connection per request, no multiplexing");
+    po.addOption ('j', "jobs", "COUNT", "Files saved or extracted at once");
+    po.addOption ('w', "bandwidth", "RATE", "Limit data exchanged with all remotes, in bytes/s (k, m, g)");
+    po.addOption ('W', "remote-bandwidth", "RATE", "Limit data exchanged with each remote, in bytes/s");
     po.addUsage ("[options] [end-point]...");
 
     System.out.println ("  pbox - Copyright (C) 2014  AxFab.net");
@@ -135,6 +147,34 @@ public class DirectoryMirror
       dm.webService.setPort (Integer.parseInt(po.getValue('p')));
     }
 
+    if (po.getOption ('m')) {
+      dm.webService.setServerMode (po.getValue('m'));
+    }
+
+    if (po.getOption ('c')) {
+      dm.webService.setMaxInFlight (Integer.parseInt(po.getValue('c')));
+    }
+
+    if (po.getOption ('x')) {
+      dm.webService.setMultiplex (false);
+    }
+
+    if (po.getOption ('j')) {
+      dm.dataService.setWorkers (Integer.parseInt(po.getValue('j')));
+    }
+
+    if (po.getOption ('w')) {
+      dm.webService.setBandwidth (TokenBucket.parseRate (po.getValue('w')));
+    }
+
+    if (po.getOption ('W')) {
+      dm.webService.setRemoteBandwidth (TokenBucket.parseRate (po.getValue('W')));
+    }
+
+    if (po.getOption ('z')) {
+      BeamCodec.setDefault (BeamCodec.forName (po.getValue('z')));
+    }
+
     if (po.getOption ('r')) {
       dm.webService.addRemote (po.getValue('r'));
     }
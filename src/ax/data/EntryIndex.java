@@ -0,0 +1,291 @@
+/*
+      pbox - personnal/private cloud box
+    Copyright (C) 2014 <Fabien Bavent>
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package ax.data;
+
+import java.nio.file.*;
+import java.io.*;
+import java.util.*;
+
+/**
+ * Saved entries kept on disk, under .pbox, so a restart does not hash 
+ * the whole tree again. Changes are appended to a journal, which is 
+ * folded into a snapshot once it grows larger than the tree. Both 
+ * carry a generation, a journal older than the snapshot is ignored.
+ */
+public class EntryIndex
+{
+  private static final byte[] MAGIC = { 'P', 'b', 'I', 'x', 2 };
+  private static final int PUT = 1;
+  private static final int REMOVE = 2;
+  private static final int COMPACT_MIN = 10000;
+
+  private File snapshot;
+  private File journal;
+  private DataOutputStream out;
+  private int records;
+  private long generation;
+  // End of the last complete record read, and whether bytes follow it
+  private long valid;
+  private boolean cut;
+
+  /**
+   * Count the bytes read, to know where the last complete record ends.
+   */
+  private static class CountingInput extends FilterInputStream
+  {
+    long count;
+
+    CountingInput (InputStream in)
+    {
+      super (in);
+    }
+
+    public int read ()
+        throws IOException
+    {
+      int b = super.read ();
+      if (b >= 0)
+        count++;
+      return b;
+    }
+
+    public int read (byte[] b, int off, int len)
+        throws IOException
+    {
+      int lg = super.read (b, off, len);
+      if (lg > 0)
+        count += lg;
+      return lg;
+    }
+  }
+
+  public EntryIndex (Path topDir)
+  {
+    this.snapshot = new File (topDir.toString() + "/.pbox/index");
+    this.journal = new File (topDir.toString() + "/.pbox/journal");
+  }
+
+  /**
+   * Fill `table` with the snapshot and the journal replayed on top. A 
+   * record cut by a crash ends the file, the journal is truncated after
+   * the last complete one before anything is appended.
+   */
+  public void load (EntryTable table)
+  {
+    read (snapshot, table);
+    records = read (journal, table);
+    if (records < 0) {
+      System.out.format ("[Debug] Skip the journal of a former snapshot\n");
+      journal.delete ();
+      records = 0;
+    } else if (cut) {
+      truncate (journal, valid);
+    }
+  }
+
+  private static void truncate (File fp, long length)
+  {
+    try {
+      RandomAccessFile raf = new RandomAccessFile (fp, "rw");
+      try {
+        raf.setLength (length);
+      } finally {
+        raf.close ();
+      }
+    } catch (IOException e) {
+      System.err.format ("[Err.] IOError truncating %s: %s\n", fp, e.getMessage());
+    }
+  }
+
+  /**
+   * Replay a file, returns the count of records or -1 for a journal 
+   * already folded into the snapshot.
+   */
+  private int read (File fp, EntryTable table)
+  {
+    if (!fp.exists ())
+      return 0;
+
+    int count = 0;
+    valid = 0;
+    cut = false;
+    try {
+      CountingInput counter = new CountingInput (
+          new BufferedInputStream (new FileInputStream (fp)));
+      DataInputStream in = new DataInputStream (counter);
+      try {
+        byte[] magic = new byte[MAGIC.length];
+        in.readFully (magic);
+        if (!Arrays.equals (magic, MAGIC)) {
+          System.err.format ("[Warn.] Unknown index format %s\n", fp);
+          return 0;
+        }
+
+        long gen = in.readLong ();
+        if (fp == snapshot)
+          generation = gen;
+        else if (gen != generation)
+          return -1;
+        valid = counter.count;
+
+        for (;;) {
+          int op = in.read ();
+          if (op < 0)
+            break;
+          String path = in.readUTF ();
+          if (op == REMOVE) {
+            table.remove (path);
+          } else {
+            String hash = in.readUTF ();
+            String parent = in.readUTF ();
+            long version = in.readLong ();
+            long length = in.readLong ();
+            long mtime = in.readLong ();
+            String type = in.readUTF ();
+            table.put (path, hash, parent.isEmpty() ? null : parent, 
+                version, length, mtime, BlobType.valueOf (type));
+          }
+          count++;
+          valid = counter.count;
+        }
+      } finally {
+        in.close ();
+      }
+    } catch (EOFException e) {
+      System.err.format ("[Warn.] Index %s truncated after %d records\n", fp, count);
+      cut = true;
+    } catch (UTFDataFormatException | IllegalArgumentException e) {
+      System.err.format ("[Warn.] Index %s corrupted after %d records\n", fp, count);
+      cut = true;
+    } catch (IOException e) {
+      System.err.format ("[Err.] IOError reading %s: %s\n", fp, e.getMessage());
+    }
+    return count;
+  }
+
+  private static void write (DataOutputStream out, String path, String hash, 
+      String parent, long version, long length, long mtime, String type)
+      throws IOException
+  {
+    out.writeByte (PUT);
+    out.writeUTF (path);
+    out.writeUTF (hash);
+    out.writeUTF (parent != null ? parent : "");
+    out.writeLong (version);
+    out.writeLong (length);
+    out.writeLong (mtime);
+    out.writeUTF (type);
+  }
+
+  private static void write (DataOutputStream out, FileEntry en)
+      throws IOException
+  {
+    write (out, en.path.toString(), en.hash, en.parent, en.version, 
+        en.length, en.mtime, en.type.toString());
+  }
+
+  private DataOutputStream openJournal ()
+      throws IOException
+  {
+    if (out == null) {
+      boolean fresh = !journal.exists () || journal.length () == 0;
+      out = new DataOutputStream (new BufferedOutputStream (
+          new FileOutputStream (journal, true)));
+      if (fresh) {
+        out.write (MAGIC);
+        out.writeLong (generation);
+      }
+    }
+    return out;
+  }
+
+  /**
+   * Journal an entry just saved or extracted. Returns true once the
+   * journal is worth compacting.
+   */
+  public synchronized boolean put (FileEntry en, int size)
+  {
+    try {
+      write (openJournal (), en);
+      out.flush ();
+    } catch (IOException e) {
+      System.err.format ("[Err.] IOError on index journal: %s\n", e.getMessage());
+    }
+    return ++records > Math.max (COMPACT_MIN, size);
+  }
+
+  public synchronized boolean remove (Path path, int size)
+  {
+    try {
+      openJournal ().writeByte (REMOVE);
+      out.writeUTF (path.toString());
+      out.flush ();
+    } catch (IOException e) {
+      System.err.format ("[Err.] IOError on index journal: %s\n", e.getMessage());
+    }
+    return ++records > Math.max (COMPACT_MIN, size);
+  }
+
+  /**
+   * Write the saved entries as the new snapshot and start an empty 
+   * journal. Entries in the middle of some work are left out, the scan
+   * of the next start finds them again. The snapshot is in place before
+   * the journal goes, a crash in between leaves a journal of the former
+   * generation that load() skips.
+   */
+  public synchronized void compact (Collection<FileEntry> entries, EntryTable table)
+  {
+    File tmp = new File (snapshot.getPath() + ".tmp");
+    try {
+      FileOutputStream file = new FileOutputStream (tmp);
+      final DataOutputStream snap = new DataOutputStream (
+          new BufferedOutputStream (file));
+      try {
+        snap.write (MAGIC);
+        snap.writeLong (generation + 1);
+        for (FileEntry en : entries) {
+          if (en.status == BlobStatus.Saved && en.hash != null)
+            write (snap, en);
+        }
+        table.visit (new EntryTable.Visitor () {
+          public void visit (String path, String hash, String parent, long version, 
+              long length, long mtime, String type) throws IOException 
+          {
+            write (snap, path, hash, parent, version, length, mtime, type);
+          }
+        });
+        snap.flush ();
+        file.getFD().sync ();
+      } finally {
+        snap.close ();
+      }
+
+      Files.move (tmp.toPath(), snapshot.toPath(), 
+          StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+      generation++;
+      if (out != null)
+        out.close ();
+      out = null;
+      journal.delete ();
+      records = 0;
+    } catch (IOException e) {
+      System.err.format ("[Err.] IOError on index snapshot: %s\n", e.getMessage());
+      tmp.delete ();
+    }
+  }
+}
@@ -0,0 +1,379 @@
+/*
+      pbox - personnal/private cloud box
+    Copyright (C) 2014 <Fabien Bavent>
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package ax.data;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.io.*;
+import java.util.*;
+import ax.io.BeamHelper;
+
+/**
+ * Saved entries loaded from the index, kept by columns instead of one 
+ * FileEntry each: binary digests, primitive fields, type and flags 
+ * packed in a byte, and paths as nodes of a trie. The names are bytes
+ * in one pool, directory names are stored once. An entry leaves the 
+ * table as a FileEntry the first time it is used, most of them never 
+ * are, and goes back once idle.
+ */
+public class EntryTable
+{
+  private static final int DIGEST = 20;
+  private static final int TYPE = 0x0f;
+  private static final int NO_PARENT = 0x10;
+  private static final int CHECKED = 0x20;
+  private static final int FREE = 0x40;
+  private static final BlobType[] TYPES = BlobType.values ();
+
+  public interface Visitor
+  {
+    public void visit (String path, String hash, String parent, long version, 
+        long length, long mtime, String type) throws IOException;
+  }
+
+  // Path trie, a node is a name under its parent node. Nodes are found 
+  // by an open addressing table holding node + 1.
+  private int[] nodeParent = new int[256];
+  private int[] nodeName = new int[256];
+  private short[] nodeLength = new short[256];
+  private int[] nodeRow = new int[256];
+  private int nodes;
+  private int[] slots = new int[512];
+  private byte[] names = new byte[4096];
+  private int namesSize;
+  private HashMap<String, Integer> dirNames = new HashMap<String, Integer> ();
+
+  private int[] rowNode = new int[256];
+  private byte[] digests = new byte[256 * DIGEST];
+  private byte[] parents = new byte[256 * DIGEST];
+  private long[] versions = new long[256];
+  private long[] lengths = new long[256];
+  private long[] mtimes = new long[256];
+  private byte[] bits = new byte[256];
+  private int rows;
+  private volatile int live;
+  // Rows left by taken or removed entries, reused by put. The trie is
+  // rebuilt once there are more dropped rows than live ones.
+  private int[] freeRows = new int[16];
+  private int freeCount;
+  private int dropped;
+
+  /**
+   * Count of entries still in the table.
+   */
+  public int size ()
+  {
+    return live;
+  }
+
+  /* === Path trie ========================================================= */
+
+  private static int hash (int parent, byte[] buf, int off, int len)
+  {
+    int h = parent * 0x9e3779b9;
+    for (int i = 0; i < len; ++i)
+      h = 31 * h + buf[off + i];
+    return h ^ (h >>> 16);
+  }
+
+  private boolean sameName (int n, byte[] name)
+  {
+    if (nodeLength[n] != name.length)
+      return false;
+    for (int i = 0, off = nodeName[n]; i < name.length; ++i) {
+      if (names[off + i] != name[i])
+        return false;
+    }
+    return true;
+  }
+
+  private int store (byte[] name)
+  {
+    if (namesSize + name.length > names.length)
+      names = Arrays.copyOf (names, Math.max (names.length * 2, namesSize + name.length));
+    System.arraycopy (name, 0, names, namesSize, name.length);
+    namesSize += name.length;
+    return namesSize - name.length;
+  }
+
+  private int child (int parent, String text, boolean dir, boolean create)
+  {
+    byte[] name = text.getBytes (StandardCharsets.UTF_8);
+    int mask = slots.length - 1;
+    int i = hash (parent, name, 0, name.length) & mask;
+    for (int n; (n = slots[i] - 1) >= 0; i = (i + 1) & mask) {
+      if (nodeParent[n] == parent && sameName (n, name))
+        return n;
+    }
+    if (!create)
+      return -1;
+    if (name.length > Short.MAX_VALUE)
+      throw new IllegalArgumentException ("Name too long: " + text);
+
+    int off;
+    Integer shared = dir ? dirNames.get (text) : null;
+    if (shared != null) {
+      off = shared;
+    } else {
+      off = store (name);
+      if (dir)
+        dirNames.put (text, off);
+    }
+
+    if (nodes == nodeParent.length) {
+      nodeParent = Arrays.copyOf (nodeParent, nodes * 2);
+      nodeName = Arrays.copyOf (nodeName, nodes * 2);
+      nodeLength = Arrays.copyOf (nodeLength, nodes * 2);
+      nodeRow = Arrays.copyOf (nodeRow, nodes * 2);
+    }
+    int n = nodes++;
+    nodeParent[n] = parent;
+    nodeName[n] = off;
+    nodeLength[n] = (short)name.length;
+    nodeRow[n] = -1;
+    slots[i] = n + 1;
+    if (nodes * 2 > slots.length)
+      rehash ();
+    return n;
+  }
+
+  private void rehash ()
+  {
+    slots = new int[slots.length * 2];
+    int mask = slots.length - 1;
+    for (int n = 0; n < nodes; ++n) {
+      int i = hash (nodeParent[n], names, nodeName[n], nodeLength[n]) & mask;
+      while (slots[i] != 0)
+        i = (i + 1) & mask;
+      slots[i] = n + 1;
+    }
+  }
+
+  private String nameOf (int n)
+  {
+    return new String (names, nodeName[n], nodeLength[n], StandardCharsets.UTF_8);
+  }
+
+  private int node (String path, boolean create)
+  {
+    int n = -1;
+    int start = 0;
+    for (;;) {
+      int end = path.indexOf ('/', start);
+      boolean dir = end >= 0;
+      n = child (n, path.substring (start, dir ? end : path.length()), dir, create);
+      if (n < 0 || !dir)
+        return n;
+      start = end + 1;
+    }
+  }
+
+  private String pathOf (int n)
+  {
+    StringBuilder sb = new StringBuilder (nameOf (n));
+    for (n = nodeParent[n]; n >= 0; n = nodeParent[n])
+      sb.insert (0, '/').insert (0, nameOf (n));
+    return sb.toString ();
+  }
+
+  /* === Rows ============================================================== */
+
+  private int find (String path)
+  {
+    int n = node (path, false);
+    if (n < 0 || nodeRow[n] < 0 || (bits[nodeRow[n]] & FREE) != 0)
+      return -1;
+    return nodeRow[n];
+  }
+
+  private void grow ()
+  {
+    int cap = rowNode.length * 2;
+    rowNode = Arrays.copyOf (rowNode, cap);
+    digests = Arrays.copyOf (digests, cap * DIGEST);
+    parents = Arrays.copyOf (parents, cap * DIGEST);
+    versions = Arrays.copyOf (versions, cap);
+    lengths = Arrays.copyOf (lengths, cap);
+    mtimes = Arrays.copyOf (mtimes, cap);
+    bits = Arrays.copyOf (bits, cap);
+  }
+
+  private static void setDigest (byte[] col, int row, String hash)
+  {
+    byte[] data = BeamHelper.stringToBytes (hash);
+    System.arraycopy (data, 0, col, row * DIGEST, DIGEST);
+  }
+
+  private static String getDigest (byte[] col, int row)
+  {
+    return BeamHelper.bytesToString (Arrays.copyOfRange (col, row * DIGEST, (row + 1) * DIGEST));
+  }
+
+  private int row (String path)
+  {
+    int n = node (path, true);
+    int row = nodeRow[n];
+    if (row >= 0)
+      return row;
+    if (freeCount > 0) {
+      row = freeRows[--freeCount];
+    } else {
+      if (rows == rowNode.length)
+        grow ();
+      row = rows++;
+    }
+    rowNode[row] = n;
+    nodeRow[n] = row;
+    live++;
+    return row;
+  }
+
+  private void drop (int row)
+  {
+    bits[row] = FREE;
+    nodeRow[rowNode[row]] = -1;
+    if (freeCount == freeRows.length)
+      freeRows = Arrays.copyOf (freeRows, freeCount * 2);
+    freeRows[freeCount++] = row;
+    live--;
+    if (++dropped > live + 4096)
+      rebuild ();
+  }
+
+  /**
+   * Build the trie again from the live rows only, dropping the nodes and 
+   * names of the paths which left the table.
+   */
+  private void rebuild ()
+  {
+    EntryTable t = new EntryTable ();
+    for (int row = 0; row < rows; ++row) {
+      if ((bits[row] & FREE) != 0)
+        continue;
+      int r = t.row (pathOf (rowNode[row]));
+      System.arraycopy (digests, row * DIGEST, t.digests, r * DIGEST, DIGEST);
+      System.arraycopy (parents, row * DIGEST, t.parents, r * DIGEST, DIGEST);
+      t.versions[r] = versions[row];
+      t.lengths[r] = lengths[row];
+      t.mtimes[r] = mtimes[row];
+      t.bits[r] = bits[row];
+    }
+
+    nodeParent = t.nodeParent;
+    nodeName = t.nodeName;
+    nodeLength = t.nodeLength;
+    nodeRow = t.nodeRow;
+    nodes = t.nodes;
+    slots = t.slots;
+    names = t.names;
+    namesSize = t.namesSize;
+    dirNames = t.dirNames;
+    rowNode = t.rowNode;
+    digests = t.digests;
+    parents = t.parents;
+    versions = t.versions;
+    lengths = t.lengths;
+    mtimes = t.mtimes;
+    bits = t.bits;
+    rows = t.rows;
+    live = t.live;
+    freeRows = t.freeRows;
+    freeCount = 0;
+    dropped = 0;
+  }
+
+  /**
+   * Add an entry, or replace the one at the same path.
+   */
+  public synchronized void put (String path, String hash, String parent, 
+      long version, long length, long mtime, BlobType type)
+  {
+    int row = row (path);
+    setDigest (digests, row, hash);
+    if (parent != null)
+      setDigest (parents, row, parent);
+    versions[row] = version;
+    lengths[row] = length;
+    mtimes[row] = mtime;
+    bits[row] = (byte)(type.ordinal () | (parent == null ? NO_PARENT : 0));
+  }
+
+  public synchronized void remove (String path)
+  {
+    int row = find (path);
+    if (row < 0)
+      return;
+    drop (row);
+  }
+
+  /**
+   * Take the entry out of the table, as a FileEntry in Saved state.
+   */
+  public synchronized FileEntry take (Path path, Path topDir)
+  {
+    int row = find (path.toString ());
+    if (row < 0)
+      return null;
+
+    FileEntry en = new FileEntry (path, getDigest (digests, row), 
+        (bits[row] & NO_PARENT) != 0 ? null : getDigest (parents, row), 
+        versions[row], lengths[row], TYPES[bits[row] & TYPE].toString (), topDir);
+    en.mtime = mtimes[row];
+    en.status = BlobStatus.Saved;
+    drop (row);
+    return en;
+  }
+
+  /**
+   * Mark the entry as found by the scan, true if the file did not change
+   * since it was saved.
+   */
+  public synchronized boolean check (Path path, File fp)
+  {
+    int row = find (path.toString ());
+    if (row < 0)
+      return false;
+    bits[row] |= CHECKED;
+    return FileEntry.isUnchanged (fp, TYPES[bits[row] & TYPE], lengths[row], mtimes[row]);
+  }
+
+  /**
+   * Paths of the entries the scan did not find.
+   */
+  public synchronized List<Path> unchecked ()
+  {
+    List<Path> paths = new ArrayList<Path> ();
+    for (int row = 0; row < rows; ++row) {
+      if ((bits[row] & (FREE | CHECKED)) == 0)
+        paths.add (Paths.get (pathOf (rowNode[row])));
+    }
+    return paths;
+  }
+
+  public synchronized void visit (Visitor visitor)
+      throws IOException
+  {
+    for (int row = 0; row < rows; ++row) {
+      if ((bits[row] & FREE) != 0)
+        continue;
+      visitor.visit (pathOf (rowNode[row]), getDigest (digests, row), 
+          (bits[row] & NO_PARENT) != 0 ? null : getDigest (parents, row), 
+          versions[row], lengths[row], mtimes[row], TYPES[bits[row] & TYPE].toString ());
+    }
+  }
+}
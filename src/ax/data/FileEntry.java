@@ -24,24 +24,19 @@ import java.util.*;
 import ax.io.BeamOut;
 import ax.io.BeamIn;
 import ax.io.BeamFormatException;
+import ax.io.BeamCodec;
+import ax.io.Chunker;
+import ax.io.TreeHash;
+import java.nio.channels.FileChannel;
 import ax.data.ILoadable;
 import ax.data.Store;
-import java.util.concurrent.atomic.AtomicInteger;
-
-enum BlobType {
-  Unknown, File, Exe, Dir,
-}
-
-enum BlobStatus {
-  Unknown, Saved, UpdateLocal, UpdateExtern, InStore, Faulted, Loading, Deleted
-}
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
 
 public class FileEntry implements ILoadable
 {
 
   Path        topDir;
   public Path        path;
-  String      name; 
   public String      parent;
   public BlobType    type;
   BlobStatus  status;
@@ -50,24 +45,26 @@ public class FileEntry implements ILoadable
   public String      hash;
 
   long        version;
+  // The version replaced by an extern update, base of the deltas
+  String      base;
+  // Modification time of the file once saved or extracted
+  long        mtime;
 
-  Date lastUpdate;
-  boolean updated;
-  AtomicInteger locked;
-  Thread lockT;
-  StackTraceElement[] lockS;
+  // Time of the last local change, in ms
+  long lastUpdate;
+  volatile int locked;
+
+  private static final AtomicIntegerFieldUpdater<FileEntry> LOCKED = 
+      AtomicIntegerFieldUpdater.newUpdater (FileEntry.class, "locked");
 
   public FileEntry (Path path, Path topDir) 
   {
-    this.locked = new AtomicInteger(0);
     this.topDir = topDir;
     this.path = path;
     this.version = 0;
     File fp = buildFile ();
-    this.name = fp.getName();
     this.status = BlobStatus.UpdateLocal;
-    this.lastUpdate = new Date();
-    this.lastUpdate.setTime(Long.MAX_VALUE);
+    this.lastUpdate = System.currentTimeMillis();
 
     if (fp.isDirectory())
       this.type = BlobType.Dir;
@@ -81,16 +78,14 @@ public class FileEntry implements ILoadable
       this.type = BlobType.Unknown;
   }
 
-  public FileEntry (Path path, String hash, String pHash, long version, String type, Path topDir) 
+  public FileEntry (Path path, String hash, String pHash, long version, long length, String type, Path topDir) 
   {
-    this.locked = new AtomicInteger(0);
     this.topDir = topDir;
     this.path = path;
     this.hash = hash;
     this.parent = pHash;
     this.version = version;
-    File fp = buildFile ();
-    this.name = fp.getName();
+    this.length = length;
     this.status = BlobStatus.UpdateExtern;
     this.type = BlobType.valueOf (type);
   }
@@ -112,54 +107,29 @@ public class FileEntry implements ILoadable
     return FileEntry.buildFileRecord (this.topDir, this.hash);
   }
 
+  private File buildTemp (String name) 
+  {
+    return buildTempFile (this.topDir, name);
+  }
+
   /* === Locking mechanisms ================================================ */
 
   public boolean trylock () 
   {
-    if (this.locked.getAndSet(1) == 0) 
-    {
-      /*
-      lockT = Thread.currentThread();
-      lockS = lockT.getStackTrace();
-      */
-      return true;
-    }
-    return false;
+    return LOCKED.getAndSet (this, 1) == 0;
   }
 
   public boolean lock () 
   {
-    int m = 50;
-    while (this.locked.getAndSet(1) != 0) {
+    while (LOCKED.getAndSet (this, 1) != 0) {
       Thread.yield();
-      if (--m < 0) {
-        m = 50;
-        /*
-        System.err.format ("[Err.] Try to get a FileEntry lock at: <%s>\n", 
-          Thread.currentThread().getName());
-        // new Throwable().printStackTrace();
-        Thread.currentThread().dumpStack();
-        System.err.format ("[----] Against: <%s>\n", lockT.getName());
-        // lockT.dumpStack();
-        for(StackTraceElement st : lockS){
-          System.err.println(st);
-        } */
-      }
     }
-    
-    /*
-    lockT = Thread.currentThread();
-    lockS = lockT.getStackTrace();
-    */
     return true;
   }
 
   public void unlock () 
   {
-    /*
-    lockT = null;
-    lockS = null; */
-    this.locked.set (0);
+    this.locked = 0;
   }
 
   /* === File Entry Actions ================================================ */
@@ -175,11 +145,11 @@ public class FileEntry implements ILoadable
     System.out.format ("[Debug] follow workflow <invalidate, %s>\n", path);
 
     this.status = BlobStatus.UpdateLocal;
-    this.lastUpdate = new Date();
+    this.lastUpdate = System.currentTimeMillis();
     return true; 
   }
 
-  public boolean extern (String hash, String parent, long version) 
+  public boolean extern (String hash, String parent, long version, long length) 
   {
     if (this.status != BlobStatus.Saved) {
       System.err.format ("[Warn.] Wrong workflow <extern> %s, %s\n", this.status, this.path);
@@ -199,7 +169,9 @@ public class FileEntry implements ILoadable
       return false;
     }
 
+    this.base = this.hash;
     this.hash = hash;
+    this.length = length;
     this.status = BlobStatus.UpdateExtern;
     return true;  
   }
@@ -207,27 +179,133 @@ public class FileEntry implements ILoadable
   private void commitSave (String hash, File fTmp) 
       throws IOException
   {
-    String subdir = topDir.toString() + "/.pbox/obj/" + hash.substring(0,2) + "/";
-    File dir = new File (subdir);
-    File dest = new File(subdir + hash.substring(2));
+    commitRecord (this.topDir, hash, fTmp);
+  }
 
-    dir.mkdirs();
+  /**
+   * Move a temporary record into the store. The same object may have been
+   * written with another codec, so an existing one is kept whatever its 
+   * length.
+   */
+  public static void commitRecord (Path topDir, String hash, File fTmp) 
+      throws IOException
+  {
+    File dest = buildFileRecord (topDir, hash);
+    dest.getParentFile().mkdirs();
     if (dest.exists()) {
-      if (fTmp.length() == dest.length()) {
-        dest.delete();
-      } else {
-        System.err.format ("Damn, you got a hash collision on %s\n", hash);
-        // TODO safe guard here <Reported for weak propability of hash collision>
-        throw new IOException("File exist: hash-collistion");
+      fTmp.delete();
+      return;
+    }
+
+    if (!fTmp.renameTo(dest)) {
+      throw new IOException("Impossible to rename temporary file");
+    }
+  }
+
+  /**
+   * Parse a whole record and check it matches its hash.
+   */
+  public static boolean verifyRecord (File fp, String hash) 
+  {
+    try {
+      BeamIn bIn = new BeamIn (fp);
+      try {
+        bIn.readLabel ();
+        bIn.readPass ();
+        return hash.equals (bIn.commit ());
+      } finally {
+        bIn.close ();
+      }
+    } catch (BeamFormatException e) {
+      return false;
+    } catch (IOException e) {
+      return false;
+    }
+  }
+
+  /**
+   * Hashes of all the records in the store.
+   */
+  public static List<String> listRecords (Path topDir) 
+  {
+    List<String> hashes = new ArrayList<String> ();
+    File[] dirs = new File (topDir.toString() + "/.pbox/obj").listFiles ();
+    if (dirs == null)
+      return hashes;
+    for (File dir : dirs) {
+      String[] names = dir.list ();
+      if (names == null || dir.getName().length() != 2)
+        continue;
+      for (String name : names) {
+        if (name.length() == 38)
+          hashes.add (dir.getName() + name);
       }
     }
+    return hashes;
+  }
+
+  public static File buildTempFile (Path topDir, String name) 
+  {
+    return new File (topDir.toString() + "/.pbox/" + name + "-" + 
+        Thread.currentThread().getId() + ".tmp");
+  }
 
-    if (!dest.exists()) {
-      if (!fTmp.renameTo(dest)) {
-        throw new IOException("Impossible to rename temporary file");
+  private void saveChunks (BeamOut bOut, FileChannel ch, BeamCodec codec) 
+      throws IOException
+  {
+    File fTmp = buildTemp ("chunk");
+    Chunker chunker = new Chunker (ch);
+    bOut.writeOpenCollection ("chunks");
+    for (;;) {
+      long offset = chunker.getOffset();
+      long lg = chunker.next();
+      if (lg == 0)
+        break;
+
+      BeamOut cOut = new BeamOut (fTmp, codec);
+      cOut.setLeafSize (TreeHash.LEAF_SIZE);
+      cOut.writeOpenObject ("chunk");
+      cOut.writeFile ("content", ch, offset, lg);
+      cOut.writeCloseObject ();
+      String hash = cOut.commit ();
+      cOut.close ();
+      commitSave (hash, fTmp);
+
+      bOut.writeOpenObject ("chunk");
+      bOut.writeString ("hash", hash);
+      bOut.writeInteger ("length", lg);
+      bOut.writeCloseObject ();
+    }
+    bOut.writeCloseCollection ();
+  }
+
+  /**
+   * Content is stored apart from the path metadata and only keyed by its
+   * own hash, so copies and moves share the same blob.
+   */
+  private String saveBlob (File fp) 
+      throws IOException
+  {
+    File fTmp = buildTemp ("blob");
+    FileChannel ch = new FileInputStream(fp).getChannel();
+    try {
+      long lg = ch.size();
+      BeamCodec codec = BeamCodec.choose (ch, 0, lg);
+      BeamOut bOut = new BeamOut (fTmp, codec);
+      bOut.setLeafSize (TreeHash.LEAF_SIZE);
+      bOut.writeOpenObject ("blob");
+      if (lg > Chunker.MAX_SIZE) {
+        saveChunks (bOut, ch, codec);
+      } else {
+        bOut.writeFile ("content", ch, 0, lg);
       }
-    } else {
-      fTmp.delete();
+      bOut.writeCloseObject ();
+      String hash = bOut.commit ();
+      bOut.close ();
+      commitSave (hash, fTmp);
+      return hash;
+    } finally {
+      ch.close();
     }
   }
 
@@ -242,22 +320,26 @@ public class FileEntry implements ILoadable
 
     String hash;
     long lg;
+    long mt;
 
     try {
       File fp = this.buildFile ();
       lg = fp.length();
+      mt = fp.lastModified();
 
-      File fTmp = new File (topDir.toString() + "/.pbox/thread-id.tmp");
+      String blob = null;
+      if (type == BlobType.File || type == BlobType.Exe) {
+        blob = saveBlob (fp);
+      }
+
+      File fTmp = buildTemp ("data");
       BeamOut bOut = new BeamOut (fTmp);
       bOut.writeOpenObject ("data");
       bOut.writeString ("name", this.path.toString());
       bOut.writeString ("type", this.type.toString());
       bOut.writeString ("parent", this.parent);
       bOut.writeInteger ("version", this.version + 1);
-
-      if (type == BlobType.File || type == BlobType.Exe) {
-        bOut.writeFile ("content", fp);
-      }
+      bOut.writeString ("blob", blob);
       bOut.writeCloseObject ();
       hash = bOut.commit ();
       bOut.close ();
@@ -269,13 +351,37 @@ public class FileEntry implements ILoadable
     }
 
     this.length = lg;
+    this.mtime = mt;
     this.parent = this.hash;
     this.hash = hash;
-    this.lastUpdate = new Date();
+    this.lastUpdate = System.currentTimeMillis();
     this.status = BlobStatus.Saved;
   }
 
-  public void reload (String namespace, WebService ws) 
+  /**
+   * The file on disk is still the one last saved or extracted, going by
+   * its length and modification time.
+   */
+  public boolean isUnchanged ()
+  {
+    return this.status == BlobStatus.Saved && 
+        isUnchanged (this.buildFile (), this.type, this.length, this.mtime);
+  }
+
+  static boolean isUnchanged (File fp, BlobType type, long length, long mtime)
+  {
+    if (!fp.exists ())
+      return false;
+    if (type == BlobType.Dir)
+      return fp.isDirectory ();
+    return fp.lastModified () == mtime && fp.length () == length;
+  }
+
+  /**
+   * Small records are fetched right away, larger ones in background and
+   * `loader` is told once they are in store.
+   */
+  public void reload (String namespace, WebService ws, ILoadable loader) 
   {
     if (this.status != BlobStatus.UpdateExtern) {
       System.err.format ("[Warn.] Wrong workflow <reload> %s, %s\n", this.status, this.path);
@@ -288,7 +394,7 @@ public class FileEntry implements ILoadable
 
     if (this.length < 64L * 1024L) {
       try {
-        if (ws.get (namespace, this.hash)) {
+        if (ws.get (namespace, this.hash, this.base)) {
           this.status = BlobStatus.InStore;
         } else {
           this.status = BlobStatus.UpdateExtern;
@@ -300,20 +406,217 @@ public class FileEntry implements ILoadable
         return;
       }
     } else if (this.length < 128L * 1024L * 1024L) {
-      ws.async (namespace, this.hash, this);
+      ws.async (namespace, this.hash, this.base, loader);
     } else {
-      ws.peer (namespace, this.hash, this);
+      ws.peer (namespace, this.hash, loader);
     }
   }
 
+  /**
+   * Called by the loader thread once the records are in store, or not.
+   */
   public void laodFinish (boolean success, String message) 
   {
+    lock ();
     if (success) {
       this.status = BlobStatus.InStore;
     } else {
       this.status = BlobStatus.UpdateExtern;
       System.err.format ("[Error] %s\n", message);
     }
+    unlock ();
+  }
+
+  private void extractChunks (BeamIn bIn, File out) 
+      throws IOException, BeamFormatException
+  {
+    FileChannel ch = new FileOutputStream(out).getChannel();
+    try {
+      bIn.readCollection ();
+      while (bIn.readLabel () != null) {
+        String hash = readChunkHash (bIn);
+        BeamIn cIn = new BeamIn (buildFileRecord (this.topDir, hash));
+        try {
+          cIn.readLabel ();
+          cIn.readObject ();
+          String label;
+          while ((label = cIn.readLabel ()) != null) {
+            if (label.equals ("content"))
+              cIn.readFile (ch);
+            else
+              cIn.readPass ();
+          }
+        } finally {
+          cIn.close ();
+        }
+      }
+    } finally {
+      ch.close();
+    }
+  }
+
+  private static String readChunkHash (BeamIn bIn) 
+      throws IOException, BeamFormatException
+  {
+    String label;
+    String hash = null;
+    bIn.readObject ();
+    while ((label = bIn.readLabel ()) != null) {
+      if (label.equals ("hash"))
+        hash = bIn.readString ();
+      else
+        bIn.readPass ();
+    }
+
+    if (hash == null)
+      throw new BeamFormatException ("Chunk without hash");
+    return hash;
+  }
+
+  /**
+   * List the objects a record depends on, so they can be fetched 
+   * alongside it.
+   */
+  public static List<String> references (Path topDir, String hash) 
+      throws IOException, BeamFormatException
+  {
+    List<String> refs = new ArrayList<String> ();
+    BeamIn bIn = new BeamIn (buildFileRecord (topDir, hash), true);
+    try {
+      String label = bIn.readLabel ();
+      bIn.readObject ();
+      while ((label = bIn.readLabel ()) != null) {
+        if (label.equals ("blob")) {
+          String blob = bIn.readString ();
+          if (blob != null)
+            refs.add (blob);
+        } else if (label.equals ("chunks")) {
+          bIn.readCollection ();
+          while (bIn.readLabel () != null) {
+            refs.add (readChunkHash (bIn));
+          }
+        } else {
+          bIn.readPass ();
+        }
+      }
+    } finally {
+      bIn.close ();
+    }
+    return refs;
+  }
+
+  /**
+   * Read the header of a record: its blob and chunks, with the offset at
+   * which each chunk starts.
+   */
+  private static void readLinks (Path topDir, String hash,
+      List<String> chunks, List<Long> offsets, String[] blob)
+      throws IOException, BeamFormatException
+  {
+    BeamIn bIn = new BeamIn (buildFileRecord (topDir, hash), true);
+    try {
+      String label = bIn.readLabel ();
+      bIn.readObject ();
+      while ((label = bIn.readLabel ()) != null) {
+        if (label.equals ("blob")) {
+          blob[0] = bIn.readString ();
+        } else if (label.equals ("chunks")) {
+          long offset = 0;
+          bIn.readCollection ();
+          while (bIn.readLabel () != null) {
+            String chunk = null;
+            long lg = 0;
+            bIn.readObject ();
+            while ((label = bIn.readLabel ()) != null) {
+              if (label.equals ("hash"))
+                chunk = bIn.readString ();
+              else if (label.equals ("length"))
+                lg = bIn.readInteger ();
+              else
+                bIn.readPass ();
+            }
+            if (chunk == null)
+              throw new BeamFormatException ("Chunk without hash");
+            chunks.add (chunk);
+            offsets.add (offset);
+            offset += lg;
+          }
+        } else {
+          bIn.readPass ();
+        }
+      }
+    } finally {
+      bIn.close ();
+    }
+  }
+
+  /**
+   * Same as references, but each object comes with the one of `base`
+   * holding the same part of the file, if any, so it can be sent as a
+   * delta.
+   */
+  public static List<String[]> deltaReferences (Path topDir, String hash, String base)
+      throws IOException, BeamFormatException
+  {
+    List<String> chunks = new ArrayList<String> ();
+    List<Long> offsets = new ArrayList<Long> ();
+    String[] blob = new String[1];
+    readLinks (topDir, hash, chunks, offsets, blob);
+
+    List<String> baseChunks = new ArrayList<String> ();
+    List<Long> baseOffsets = new ArrayList<Long> ();
+    String[] baseBlob = new String[1];
+    if (base != null && buildFileRecord (topDir, base).exists())
+      readLinks (topDir, base, baseChunks, baseOffsets, baseBlob);
+    else
+      base = null;
+
+    List<String[]> refs = new ArrayList<String[]> ();
+    if (blob[0] != null)
+      refs.add (new String[] { blob[0], baseBlob[0] });
+
+    for (int i = 0, j = 0; i < chunks.size(); ++i) {
+      long offset = offsets.get (i);
+      String pair = null;
+      if (!baseChunks.isEmpty()) {
+        while (j + 1 < baseOffsets.size() && baseOffsets.get (j + 1) <= offset)
+          j++;
+        pair = baseChunks.get (j);
+      } else if (base != null && baseBlob[0] == null && offset < Chunker.MAX_SIZE) {
+        // The file was small enough to be kept in one blob
+        pair = base;
+      }
+      refs.add (new String[] { chunks.get (i), pair });
+    }
+    return refs;
+  }
+
+  private void extractBlob (String blob, File out) 
+      throws IOException, BeamFormatException
+  {
+    BeamIn bIn = new BeamIn (buildFileRecord (this.topDir, blob));
+    try {
+      String label = bIn.readLabel ();
+      bIn.readObject ();
+      while ((label = bIn.readLabel ()) != null) {
+        switch (label) {
+          case "content":
+            System.err.format ("[Trace] Re-write file %s\n", out.getPath());
+            bIn.readFile (out);
+            break;
+          case "chunks":
+            System.err.format ("[Trace] Re-write file %s\n", out.getPath());
+            extractChunks (bIn, out);
+            break;
+          default:
+            System.err.format("[Debug] Unknown field %s\n", label);
+            bIn.readPass ();
+            break;
+        }
+      }
+    } finally {
+      bIn.close ();
+    }
   }
 
   public void extract () 
@@ -332,8 +635,9 @@ public class FileEntry implements ILoadable
       } else if (this.type == BlobType.File || this.type == BlobType.Exe) {
         out.getParentFile().mkdirs();
 
+        String blob = null;
         File in = this.buildRecord();
-        BeamIn bIn = new BeamIn(in);
+        BeamIn bIn = new BeamIn(in, true);
 
         String label = bIn.readLabel ();
         bIn.readObject ();
@@ -351,9 +655,8 @@ public class FileEntry implements ILoadable
             case "version":
               long vers = bIn.readInteger ();
               break;
-            case "content":
-              System.err.format ("[Trace] Re-write file %s\n", out.getPath());
-              bIn.readFile (out);
+            case "blob":
+              blob = bIn.readString ();
               break;
             default:
               System.err.format("[Debug] Unknown field %s\n", label);
@@ -361,7 +664,12 @@ public class FileEntry implements ILoadable
               break;
           }
         }
+        bIn.close ();
+
+        // Records of the former format hold the content themselves
+        extractBlob (blob != null ? blob : this.hash, out);
       }
+      this.mtime = out.lastModified ();
       System.err.format ("[Trace] Done extract file %s -> %s\n", this.hash, out.getPath());
     } catch (BeamFormatException e) {
       System.err.format ("[Error] Wrong format on Beam extraction %s\n", e.getMessage());
@@ -374,8 +682,8 @@ public class FileEntry implements ILoadable
     this.status = BlobStatus.Saved;
   }
 
-  public void localdelete (WebService ws) {
-    ws.sendDelete (this.path, this.hash, this.version);
+  public void localdelete (Outbox outbox) {
+    outbox.delete (this.path, this.hash, this.version);
   }
 
   public boolean delete ()
@@ -389,11 +697,11 @@ public class FileEntry implements ILoadable
     System.out.format ("[Debug] follow workflow <delete, %s>\n", path);
 
     this.status = BlobStatus.Deleted;
-    this.lastUpdate = new Date();
+    this.lastUpdate = System.currentTimeMillis();
     return true; 
   }
 
-  public boolean doDelete (WebService ws)  {
+  public boolean doDelete (Outbox outbox)  {
 
     if (this.status != BlobStatus.Deleted) {
       System.err.format ("[Warn.] Wrong workflow <doDelete> %s, %s\n", this.status, this.path);
@@ -405,7 +713,7 @@ public class FileEntry implements ILoadable
     File fp = this.buildFile();
     if (fp.exists ()) {
       if (fp.delete()) {
-        ws.sendDelete (this.path, this.hash, this.version);
+        outbox.delete (this.path, this.hash, this.version);
       }
       return false;
     }
@@ -413,33 +721,34 @@ public class FileEntry implements ILoadable
     return true;
   }
 
-  public boolean somethingToDo (Date timer) 
+  /**
+   * Local updates are debounced by DataService, an entry is only asked
+   * once its deadline is past.
+   */
+  public boolean somethingToDo () 
   {
-    return ((this.status == BlobStatus.UpdateLocal && 
-        this.lastUpdate.compareTo (timer) > 0) || 
+    return (this.status == BlobStatus.UpdateLocal || 
         this.status == BlobStatus.InStore ||
         this.status == BlobStatus.UpdateExtern ||
         this.status == BlobStatus.Deleted);
   }
 
-  public boolean doSomething (Date timer, DirectoryMirror dm) 
+  public boolean doSomething (DirectoryMirror dm) 
   {
     BlobStatus st = this.status;
-    // System.out.format ("[Trace] Action: %s  [%s - %s]\n", this.status, this.lastUpdate, timer);
-    if (this.status == BlobStatus.UpdateLocal && 
-        this.lastUpdate.compareTo (timer) > 0) {
+    if (this.status == BlobStatus.UpdateLocal) {
       this.save ();
       // System.err.format ("[Debug] Update %s [%s]\n", this.path, this.hash);
-      dm.webService.sendUpdate (this.path, this.hash, this.parent, this.version, this.type.toString());
+      dm.outbox.update (this.path, this.hash, this.parent, this.version, this.length, this.type.toString());
       return true;
     } else if (this.status == BlobStatus.InStore) {
       this.extract ();
       return true;
       // TODO Huge file may crash the apps here
     } else if (this.status == BlobStatus.UpdateExtern) {
-      this.reload (dm.getNamespace(), dm.webService);
+      this.reload (dm.getNamespace(), dm.webService, dm.dataService.loader (this));
     } else if (this.status == BlobStatus.Deleted) {
-      if (this.doDelete (dm.webService)) {
+      if (this.doDelete (dm.outbox)) {
         dm.dataService.remove(this, this.path);
         return true;
       }
@@ -0,0 +1,184 @@
+/*
+      pbox - personnal/private cloud box
+    Copyright (C) 2014 <Fabien Bavent>
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package ax.data;
+
+import java.nio.file.*;
+import java.io.*;
+import java.util.*;
+import ax.io.BeamOut;
+
+/**
+ * Changes waiting to be sent to the remote. Successive changes on the 
+ * same path are merged, and they are sent by batches of up to MAX_BATCH 
+ * in one `updates` message, at most FLUSH_DELAY ms after the first one.
+ */
+public class Outbox implements Runnable
+{
+  public static final int MAX_BATCH = 256;
+  public static final int FLUSH_DELAY = 200;
+  private static final int RETRY_DELAY = 3500;
+
+  static class Change 
+  {
+    final Path path;
+    final boolean delete;
+    final String hash;
+    final String parent;
+    final long version;
+    final long length;
+    final String type;
+
+    Change (Path path, boolean delete, String hash, String parent, 
+        long version, long length, String type)
+    {
+      this.path = path;
+      this.delete = delete;
+      this.hash = hash;
+      this.parent = parent;
+      this.version = version;
+      this.length = length;
+      this.type = type;
+    }
+
+    void write (BeamOut out)
+        throws IOException
+    {
+      out.writeOpenObject(delete ? "delete" : "update");
+      out.writeString("hash", hash);
+      out.writeString("url", path.toString());
+      if (!delete) {
+        out.writeString("parent", parent);
+        out.writeString("type", type);
+        out.writeInteger("length", length);
+      }
+      out.writeInteger("version", version);
+      out.writeCloseObject();
+    }
+  }
+
+  private WebService webService;
+  private LinkedHashMap<Path, Change> pending;
+  // Time of the oldest change not sent yet
+  private long firstChange;
+
+  public Outbox (WebService ws)
+  {
+    this.webService = ws;
+    this.pending = new LinkedHashMap<Path, Change> ();
+  }
+
+  public void update (Path path, String hash, String pHash, long version, 
+      long length, String type) 
+  {
+    add (new Change (path, false, hash, pHash, version, length, type));
+  }
+
+  public void delete (Path path, String hash, long version)
+  {
+    add (new Change (path, true, hash, null, version, 0, null));
+  }
+
+  private synchronized void add (Change change)
+  {
+    if (pending.isEmpty())
+      firstChange = System.currentTimeMillis();
+
+    // Only the last change of a path matters
+    Change prev = pending.remove (change.path);
+    pending.put (change.path, prev != null ? merge (prev, change) : change);
+    if (pending.size() == 1 || pending.size() >= MAX_BATCH)
+      notifyAll ();
+  }
+
+  /**
+   * Wait for a batch to be due: full, or its oldest change is old enough.
+   */
+  private synchronized List<Change> take ()
+      throws InterruptedException
+  {
+    for (;;) {
+      if (pending.isEmpty()) {
+        wait ();
+        continue;
+      }
+
+      long delay = firstChange + FLUSH_DELAY - System.currentTimeMillis();
+      if (pending.size() < MAX_BATCH && delay > 0) {
+        wait (delay);
+        continue;
+      }
+
+      List<Change> batch = new ArrayList<Change> (Math.min (pending.size(), MAX_BATCH));
+      Iterator<Change> it = pending.values().iterator();
+      while (it.hasNext() && batch.size() < MAX_BATCH) {
+        batch.add (it.next());
+        it.remove ();
+      }
+      return batch;
+    }
+  }
+
+  /**
+   * Put back a batch which could not be sent, merged with the changes
+   * of the same paths made since.
+   */
+  private synchronized void requeue (List<Change> batch)
+  {
+    if (pending.isEmpty())
+      firstChange = System.currentTimeMillis();
+    for (Change change : batch) {
+      Change next = pending.get (change.path);
+      pending.put (change.path, next != null ? merge (change, next) : change);
+    }
+  }
+
+  /**
+   * The newer change replaces the older one, which was never sent. An
+   * update keeps the parent the remote knows: the one of the older 
+   * update, or the hash an older delete was about.
+   */
+  private static Change merge (Change older, Change newer)
+  {
+    if (newer.delete)
+      return newer;
+    String parent = older.delete ? older.hash : older.parent;
+    return new Change (newer.path, false, newer.hash, parent, newer.version, 
+        newer.length, newer.type);
+  }
+
+  public void run () 
+  {
+    Thread.currentThread().setName ("Outbox");
+    System.out.println ("[Trace] Outbox started");
+    for (;;) {
+      try {
+        List<Change> batch = take ();
+        if (!webService.hasRemote ())
+          continue;
+
+        if (!webService.sendBatch (batch)) {
+          requeue (batch);
+          Thread.sleep (Math.max (RETRY_DELAY, webService.getBusyDelay ()));
+        }
+      } catch (InterruptedException ex) {
+        break;
+      }
+    }
+    System.out.println ("[Trace] Outbox stopped");
+  }
+}
@@ -0,0 +1,234 @@
+/*
+      pbox - personnal/private cloud box
+    Copyright (C) 2014 <Fabien Bavent>
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package ax.data;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.io.*;
+import java.util.*;
+import ax.io.TreeHash;
+
+/**
+ * A record being downloaded by ranges into `.pbox/<hash>.part`. The 
+ * ranges already written are listed in `.pbox/<hash>.state`, so an 
+ * interrupted transfer goes on where it stopped. Each range is checked 
+ * against the leaf hash announced by the remote before it is written.
+ */
+class RecordPart
+{
+  public static final int RANGE_SIZE = 1024 * 1024;
+
+  final String hash;
+  final long length;
+  final int rangeSize;
+  private final byte[] leaves;
+  private final Path topDir;
+  private final File part;
+  private final File state;
+  private BitSet done;
+  private FileChannel ch;
+
+  RecordPart (Path topDir, String hash, long length, int rangeSize, byte[] leaves)
+      throws IOException
+  {
+    this.topDir = topDir;
+    this.hash = hash;
+    this.length = length;
+    this.rangeSize = rangeSize;
+    this.leaves = leaves;
+    this.part = new File (topDir.toString() + "/.pbox/" + hash + ".part");
+    this.state = new File (topDir.toString() + "/.pbox/" + hash + ".state");
+    if (leaves.length != 20 * getRangeCount())
+      throw new IOException ("Bad leaves for " + hash);
+  }
+
+  /**
+   * Hash of each range of a stored record, as announced by `stat`.
+   */
+  static byte[] hashRanges (File fp, int rangeSize)
+      throws IOException
+  {
+    long length = fp.length();
+    int count = (int)((length + rangeSize - 1) / rangeSize);
+    byte[] leaves = new byte[20 * count];
+    byte[] buf = new byte[rangeSize];
+    DataInputStream in = new DataInputStream (new FileInputStream (fp));
+    try {
+      for (int i = 0; i < count; ++i) {
+        int lg = (int)Math.min (rangeSize, length - (long)i * rangeSize);
+        in.readFully (buf, 0, lg);
+        System.arraycopy (TreeHash.hashLeaf (buf, 0, lg), 0, leaves, 20 * i, 20);
+      }
+    } finally {
+      in.close ();
+    }
+    return leaves;
+  }
+
+  int getRangeCount ()
+  {
+    return (int)((length + rangeSize - 1) / rangeSize);
+  }
+
+  long getOffset (int index)
+  {
+    return (long)index * rangeSize;
+  }
+
+  int getLength (int index)
+  {
+    return (int)Math.min (rangeSize, length - getOffset (index));
+  }
+
+  /**
+   * Open the part file, keeping the ranges of a previous attempt which 
+   * still match their hash.
+   */
+  void open ()
+      throws IOException
+  {
+    done = readState ();
+    RandomAccessFile raf = new RandomAccessFile (part, "rw");
+    if (raf.length() != length) {
+      done.clear ();
+      raf.setLength (length);
+    }
+    ch = raf.getChannel();
+
+    if (done.isEmpty())
+      return;
+    byte[] buf = new byte[rangeSize];
+    for (int i = done.nextSetBit (0); i >= 0; i = done.nextSetBit (i + 1)) {
+      ByteBuffer bb = ByteBuffer.wrap (buf, 0, getLength (i));
+      long pos = getOffset (i);
+      while (bb.hasRemaining()) {
+        if (ch.read (bb, pos + bb.position()) < 0)
+          break;
+      }
+      if (bb.hasRemaining() || !checkRange (i, buf, getLength (i)))
+        done.clear (i);
+    }
+    System.out.format ("[Debug] Resume %s with %d/%d ranges\n", hash, 
+        done.cardinality(), getRangeCount());
+  }
+
+  private BitSet readState ()
+  {
+    if (!state.exists())
+      return new BitSet ();
+    try {
+      DataInputStream in = new DataInputStream (new FileInputStream (state));
+      try {
+        if (in.readLong () != length || in.readInt () != rangeSize)
+          return new BitSet ();
+        byte[] bits = new byte[in.readInt ()];
+        in.readFully (bits);
+        return BitSet.valueOf (bits);
+      } finally {
+        in.close ();
+      }
+    } catch (IOException e) {
+      return new BitSet ();
+    }
+  }
+
+  private void writeState ()
+      throws IOException
+  {
+    byte[] bits = done.toByteArray ();
+    DataOutputStream out = new DataOutputStream (new FileOutputStream (state));
+    try {
+      out.writeLong (length);
+      out.writeInt (rangeSize);
+      out.writeInt (bits.length);
+      out.write (bits);
+    } finally {
+      out.close ();
+    }
+  }
+
+  synchronized List<Integer> missing ()
+  {
+    List<Integer> list = new ArrayList<Integer> ();
+    for (int i = done.nextClearBit (0); i < getRangeCount(); i = done.nextClearBit (i + 1))
+      list.add (i);
+    return list;
+  }
+
+  boolean checkRange (int index, byte[] data, int len)
+  {
+    byte[] sum = TreeHash.hashLeaf (data, 0, len);
+    return Arrays.equals (sum, Arrays.copyOfRange (leaves, 20 * index, 20 * index + 20));
+  }
+
+  /**
+   * Write a received range at its place, false if it doesn't match.
+   */
+  boolean write (int index, byte[] data, int len)
+      throws IOException
+  {
+    if (len != getLength (index) || !checkRange (index, data, len))
+      return false;
+
+    ByteBuffer bb = ByteBuffer.wrap (data, 0, len);
+    long pos = getOffset (index);
+    while (bb.hasRemaining())
+      ch.write (bb, pos + bb.position());
+
+    synchronized (this) {
+      done.set (index);
+      writeState ();
+    }
+    return true;
+  }
+
+  synchronized boolean isComplete ()
+  {
+    return done.cardinality() == getRangeCount();
+  }
+
+  /**
+   * Check the whole record and move it into the store.
+   */
+  boolean commit ()
+      throws IOException
+  {
+    close ();
+    if (!FileEntry.verifyRecord (part, hash)) {
+      part.delete ();
+      state.delete ();
+      return false;
+    }
+
+    FileEntry.commitRecord (topDir, hash, part);
+    state.delete ();
+    return true;
+  }
+
+  void close ()
+  {
+    if (ch == null)
+      return;
+    try {
+      ch.close ();
+    } catch (IOException e) {
+    }
+    ch = null;
+  }
+}
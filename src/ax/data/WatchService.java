@@ -167,7 +167,7 @@ public class WatchService implements Runnable
 
   private void listFilesForFolder(Path dir) 
   {
-    create (dir);
+    scan (dir);
     File folder = new File(dir.toString());
     for (File fileEntry : folder.listFiles()) {
       if (fileEntry.isDirectory()) {
@@ -175,12 +175,23 @@ public class WatchService implements Runnable
       } else {
         Path file = Paths.get(dir.toString() + "/" + fileEntry.getName());
 
-        create (file);
+        scan (file);
         /* modify (file);*/
       }
     }
   }
 
+  /**
+   * Files kept as they were saved in the index are not read again.
+   */
+  private void scan (Path path)
+  {
+    Path rel = Paths.get (path.toString().replace(this.topDir.toString(), "."));
+    if (this.dirMirror.dataService.check (rel))
+      return;
+    create (path);
+  }
+
   public void register (Path path) 
   {
     listFilesForFolder(path);
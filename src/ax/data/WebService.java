@@ -21,18 +21,104 @@ import java.nio.file.*;
 import java.io.*;
 import java.util.*;
 import java.net.*;
+import java.lang.reflect.Method;
+import java.nio.channels.ServerSocketChannel;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import ax.io.BeamHelper;
+import ax.io.BeamIn;
+import ax.io.BeamOut;
+import ax.io.Delta;
 import ax.util.*;
+import ax.util.TokenBucket;
+import ax.net.BeamMux;
+import ax.net.BeamPool;
 import ax.net.BeamSocket;
+import ax.net.NioServer;
 import ax.io.BeamFormatException;
 
 public class WebService implements Runnable
 {
+  // Connections idle for longer are closed by the server, it must stay 
+  // above BeamPool.IDLE_TIMEOUT so clients drop them first.
+  private static final int SERVER_IDLE_TIMEOUT = 5 * 60 * 1000;
+  // A request must be received completely within this delay
+  private static final int REQUEST_TIMEOUT = 30 * 1000;
+  private static final int MAX_IN_FLIGHT = 64;
+  private static final int MAX_DOWNLOADS = 8;
+  private static final int MAX_DOWNLOADS_PER_REMOTE = 4;
+  // Connections used at once to download a large file by ranges
+  private static final int PEER_STREAMS = 4;
+  // Records downloaded together by the peer tier
+  private static final int PEER_BATCH = 64;
+  // Up to this count the objects we have are listed exactly, a Bloom 
+  // filter with HAVE_FPP false positives is sent above.
+  private static final int EXACT_HAVE = 4096;
+  private static final double HAVE_FPP = 0.0001;
+  // Probes per key of a received Bloom filter, ours use about 13
+  private static final int MAX_HAVE_PROBES = 64;
+  // Records are rebuilt in memory, larger ones are fetched whole
+  private static final int DELTA_MAX = 16 * 1024 * 1024;
+  // Changes are refused while that many entries wait in DataService
+  private static final int MAX_QUEUE_DEPTH = 4 * Outbox.MAX_BATCH;
+  private static final int BUSY_DELAY = 5000;
+
   private DirectoryMirror dirMirror;
   private Path topDir;
 
   private String hostName;
   private int portNumber = 9620;
 
+  // How incoming connections are served: "single", "thread", "virtual" 
+  // or "nio"
+  private String serverMode = "thread";
+  private Semaphore inFlight = new Semaphore(MAX_IN_FLIGHT);
+  private int maxInFlight = MAX_IN_FLIGHT;
+
+  private BeamPool pool = new BeamPool();
+  private ExecutorService connections;
+
+  // Background downloads of the async tier, the queue is not bounded but
+  // only MAX_DOWNLOADS run at once.
+  private ThreadPoolExecutor downloads = new ThreadPoolExecutor(
+      MAX_DOWNLOADS, MAX_DOWNLOADS, 60, TimeUnit.SECONDS, 
+      new LinkedBlockingQueue<Runnable>());
+  private HashMap<String, RemoteSlots> remoteSlots = new HashMap<String, RemoteSlots>();
+  private ExecutorService rangeWorkers = Executors.newFixedThreadPool(PEER_STREAMS);
+
+  // Only raw payloads and delta data wait for tokens, the other messages
+  // always go first.
+  private TokenBucket totalRate;
+  private long remoteRate;
+  private HashMap<String, TokenBucket> remoteRates = new HashMap<String, TokenBucket>();
+  private volatile long busyUntil;
+
+  /**
+   * One request/response over a pooled connection.
+   */
+  private interface Exchange
+  {
+    boolean run (BeamSocket beam) throws IOException, BeamFormatException;
+  }
+
+  /**
+   * Downloads of one remote wait here for one of its slots, a pool 
+   * thread only runs a download which holds one.
+   */
+  private static class RemoteSlots
+  {
+    final Semaphore slots = new Semaphore (MAX_DOWNLOADS_PER_REMOTE);
+    final ConcurrentLinkedQueue<Runnable> waiting = new ConcurrentLinkedQueue<Runnable> ();
+  }
+
   public WebService (DirectoryMirror dm)
   {
     this.dirMirror = dm;
@@ -49,6 +135,8 @@ public class WebService implements Runnable
   {
     String hash= null;
     String label;
+    long offset = 0;
+    long length = -1;
     beam.in.readObject ();    
     while ((label = beam.in.readLabel ()) != null) {
       switch (label) {
@@ -57,6 +145,14 @@ public class WebService implements Runnable
           hash = beam.in.readString ();
           break;
 
+        case "offset":
+          offset = beam.in.readInteger ();
+          break;
+
+        case "length":
+          length = beam.in.readInteger ();
+          break;
+
         default:
           beam.in.readPass ();
           break;
@@ -71,11 +167,21 @@ public class WebService implements Runnable
     }
 
     File fp = FileEntry.buildFileRecord(topDir, hash);
-    if (fp.exists()) {
-      beam.out.writeOpenObject ("data");
+    long size = fp.length();
+    if (fp.exists() && (offset < 0 || offset > size)) {
+      beam.out.writeOpenObject ("err");
+      beam.out.writeString ("msg", "Bad range");
+      beam.out.writeCloseObject ();
+    } else if (fp.exists()) {
+      // The record is sent as stored, it is already compressed
+      if (length < 0 || length > size - offset)
+        length = size - offset;
+      beam.out.writeOpenObject ("raw");
       beam.out.writeString ("hash", hash);
-      beam.out.writeFile ("record", fp);
+      beam.out.writeInteger ("offset", offset);
+      beam.out.writeInteger ("length", length);
       beam.out.writeCloseObject ();
+      beam.sendRaw (fp, offset, length);
     } else {
       beam.out.writeOpenObject ("err");
       beam.out.writeString ("msg", "File doesn't exist");
@@ -83,8 +189,115 @@ public class WebService implements Runnable
     }
   }
 
+  /**
+   * Size of a record and hash of each of its ranges, for the peer tier.
+   */
+  private void stat (BeamSocket beam)
+      throws BeamFormatException, IOException
+  {
+    String hash= null;
+    String label;
+    beam.in.readObject ();    
+    while ((label = beam.in.readLabel ()) != null) {
+      switch (label) {
+
+        case "hash":
+          hash = beam.in.readString ();
+          break;
+
+        default:
+          beam.in.readPass ();
+          break;
+      }
+    }
+
+    File fp = hash != null ? FileEntry.buildFileRecord(topDir, hash) : null;
+    if (fp == null || !fp.exists()) {
+      beam.out.writeOpenObject ("err");
+      beam.out.writeString ("msg", "File doesn't exist");
+      beam.out.writeCloseObject ();
+      return;
+    }
+
+    beam.out.writeOpenObject ("stat");
+    beam.out.writeString ("hash", hash);
+    beam.out.writeInteger ("length", fp.length());
+    beam.out.writeInteger ("range", RecordPart.RANGE_SIZE);
+    beam.out.writeBytes ("leaves", RecordPart.hashRanges (fp, RecordPart.RANGE_SIZE));
+    beam.out.writeCloseObject ();
+  }
+
+  /**
+   * Answer the list of objects we have and the remote doesn't, from its 
+   * Bloom filter or its sorted list of hashes.
+   */
+  private void have (BeamSocket beam)
+      throws BeamFormatException, IOException
+  {
+    String label;
+    byte[] filter = null;
+    byte[] hashes = null;
+    long seed = 0;
+    long count = 0;
+    beam.in.readObject ();    
+    while ((label = beam.in.readLabel ()) != null) {
+      switch (label) {
+
+        case "filter":
+          filter = beam.in.readBytes ();
+          break;
+
+        case "seed":
+          seed = beam.in.readInteger ();
+          break;
+
+        case "count":
+          count = beam.in.readInteger ();
+          break;
+
+        case "hashes":
+          hashes = beam.in.readBytes ();
+          break;
+
+        default:
+          beam.in.readPass ();
+          break;
+      }
+    }
+
+    // Every object we have is probed `count` times
+    if (filter != null && (count < 1 || count > MAX_HAVE_PROBES || count > 8L * filter.length))
+      throw new BeamFormatException ("Bad 'count' of probes: " + count);
+
+    BloomFilter bloom = filter != null ? new BloomFilter (filter, (int)count, seed) : null;
+    DigestList list = new DigestList (hashes != null ? hashes : new byte[0]);
+    int missing = 0;
+    beam.out.writeOpenCollection ("missing");
+    for (String hash : FileEntry.listRecords (topDir)) {
+      byte[] key = BeamHelper.stringToBytes (hash);
+      if (bloom != null ? !bloom.mightContain (key) : !list.contains (key)) {
+        beam.out.writeString ("hash", hash);
+        missing++;
+      }
+    }
+    beam.out.writeCloseCollection ();
+    System.out.format ("[Debug] Remote misses %d objects\n", missing);
+  }
+
   private void update (BeamSocket beam)
       throws BeamFormatException, IOException
+  {
+    if (isBusy ()) {
+      beam.in.readPass ();
+      writeBusy (beam);
+      return;
+    }
+    applyUpdate (beam);
+    beam.out.writeString ("ACK", null);
+  }
+
+  private void applyUpdate (BeamSocket beam)
+      throws BeamFormatException, IOException
   {
     String label = null;
     String url = null;
@@ -92,6 +305,7 @@ public class WebService implements Runnable
     String hash = null;
     String type = null;
     long version = 0;
+    long length = 0;
 
     beam.in.readObject ();
     while ((label = beam.in.readLabel ()) != null) {
@@ -117,6 +331,10 @@ public class WebService implements Runnable
           type = beam.in.readString ();
           break;
 
+        case "length":
+          length = beam.in.readInteger ();
+          break;
+
         default:
           beam.in.readPass ();
           break;
@@ -131,18 +349,47 @@ public class WebService implements Runnable
       FileEntry fpEn = this.dirMirror.dataService.getFileEntry (path);
 
       if (fpEn == null) {
-        fpEn = new FileEntry(path, hash, pHash, version, type, this.topDir);
+        fpEn = new FileEntry(path, hash, pHash, version, length, type, this.topDir);
         this.dirMirror.dataService.addFileEntry (fpEn, path);
       } else {
-        this.dirMirror.dataService.updateExFileEntry (fpEn, hash, pHash, version);
+        this.dirMirror.dataService.updateExFileEntry (fpEn, hash, pHash, version, length);
         // fpEn.extern (hash, pHash, version);
       }
     }
+  }
 
+  private void delete (BeamSocket beam)
+      throws BeamFormatException, IOException
+  {
+    if (isBusy ()) {
+      beam.in.readPass ();
+      writeBusy (beam);
+      return;
+    }
+    applyDelete (beam);
     beam.out.writeString ("ACK", null);
   }
 
-  private void delete (BeamSocket beam)
+  /**
+   * Too many changes wait to be processed, the remote should keep the 
+   * next ones for a while.
+   */
+  private boolean isBusy ()
+  {
+    return dirMirror.dataService.getQueueDepth () >= MAX_QUEUE_DEPTH;
+  }
+
+  private void writeBusy (BeamSocket beam)
+      throws IOException
+  {
+    System.out.format ("[Debug] Busy, %d entries waiting\n", 
+        dirMirror.dataService.getQueueDepth ());
+    beam.out.writeOpenObject ("busy");
+    beam.out.writeInteger ("delay", BUSY_DELAY);
+    beam.out.writeCloseObject ();
+  }
+
+  private void applyDelete (BeamSocket beam)
       throws BeamFormatException, IOException
   {
     String label = null;
@@ -180,10 +427,121 @@ public class WebService implements Runnable
       this.dirMirror.dataService.rmFileEntry (fpEn, path);
     }
 
-    beam.out.writeString ("ACK", null);
     System.out.format ("[Debug] Ext. delete done: %s\n", path);
   }
 
+  /**
+   * A batch of update and delete, applied in order and acknowledged 
+   * once.
+   */
+  private void updates (BeamSocket beam)
+      throws BeamFormatException, IOException
+  {
+    String label = null;
+    int count = 0;
+
+    if (isBusy ()) {
+      beam.in.readPass ();
+      writeBusy (beam);
+      return;
+    }
+
+    beam.in.readCollection ();
+    while ((label = beam.in.readLabel ()) != null) {
+      switch (label) {
+
+        case "update":
+          applyUpdate (beam);
+          count++;
+          break;
+
+        case "delete":
+          applyDelete (beam);
+          count++;
+          break;
+
+        default:
+          beam.in.readPass ();
+          break;
+      }
+    }
+
+    System.out.format ("[Debug] Received %d changes\n", count);
+    beam.out.writeString ("ACK", null);
+  }
+
+  /**
+   * Send a record as copies of the blocks of a version the remote 
+   * already has, described by their signature, and literal data.
+   */
+  private void delta (BeamSocket beam)
+      throws BeamFormatException, IOException
+  {
+    String hash = null;
+    String label;
+    int blockSize = 0;
+    byte[] signature = null;
+    beam.in.readObject ();    
+    while ((label = beam.in.readLabel ()) != null) {
+      switch (label) {
+
+        case "hash":
+          hash = beam.in.readString ();
+          break;
+
+        case "range":
+          blockSize = (int)beam.in.readInteger ();
+          break;
+
+        case "signature":
+          signature = beam.in.readBytes ();
+          break;
+
+        default:
+          beam.in.readPass ();
+          break;
+      }
+    }
+
+    File fp = hash != null ? FileEntry.buildFileRecord(topDir, hash) : null;
+    byte[] head = fp != null && fp.exists() ? BeamIn.readHeader (fp) : null;
+    byte[] data = head != null ? Delta.readAll (BeamIn.openStream (fp), DELTA_MAX) : null;
+    if (data == null || signature == null || 
+        blockSize < Delta.MIN_BLOCK || blockSize > Delta.MAX_BLOCK) {
+      beam.out.writeOpenObject ("err");
+      beam.out.writeString ("msg", "No delta for this record");
+      beam.out.writeCloseObject ();
+      return;
+    }
+
+    beam.out.writeOpenObject ("delta");
+    beam.out.writeString ("hash", hash);
+    beam.out.writeInteger ("length", data.length);
+    beam.out.writeInteger ("header", head.length);
+    beam.out.writeOpenCollection ("ops");
+    final BeamSocket sock = beam;
+    final BeamOut out = beam.out;
+    Delta.diff (data, data.length, signature, blockSize, new Delta.Ops () {
+      public void copy (int block, int count) 
+          throws IOException
+      {
+        out.writeOpenObject ("copy");
+        out.writeInteger ("offset", block);
+        out.writeInteger ("count", count);
+        out.writeCloseObject ();
+      }
+
+      public void data (byte[] buf, int off, int len) 
+          throws IOException
+      {
+        sock.pace (len);
+        out.writeBytes ("data", Arrays.copyOfRange (buf, off, off + len));
+      }
+    });
+    beam.out.writeCloseCollection ();
+    beam.out.writeCloseObject ();
+  }
+
   public void receiveRequest (BeamSocket beam)
       throws BeamFormatException, IOException
   {
@@ -192,10 +550,18 @@ public class WebService implements Runnable
     System.out.format ("[Trace] Receive request %s\n", label);
     if (label.equals ("request")) {
       request (beam);
+    } else if (label.equals ("stat")) {
+      stat (beam);
+    } else if (label.equals ("delta")) {
+      delta (beam);
+    } else if (label.equals ("have")) {
+      have (beam);
     } else if (label.equals ("update")) {
       update (beam);
     } else if (label.equals ("delete")) {
       delete (beam);
+    } else if (label.equals ("updates")) {
+      updates (beam);
     } else if (label.equals ("ping")) {
       beam.in.readPass();
       beam.out.writeString ("pong", null);
@@ -208,23 +574,48 @@ public class WebService implements Runnable
 
   public void listen () {
 
+    if (serverMode.equals ("nio")) {
+      listenNio ();
+      return;
+    }
+
+    if (serverMode.equals ("virtual"))
+      connections = newVirtualExecutor ();
+    else if (serverMode.equals ("thread"))
+      connections = Executors.newCachedThreadPool ();
+
     ServerSocket serverSocket = null;
     
     for (;;) {
       try { 
         if (serverSocket == null) {
-          System.out.format ("[Trace] Start listen at port %d\n", portNumber);
-          serverSocket = new ServerSocket(portNumber);
+          System.out.format ("[Trace] Start listen at port %d (%s)\n", portNumber, serverMode);
+          // Accepted sockets have a channel to send raw payloads from
+          ServerSocket bound = ServerSocketChannel.open().socket();
+          try {
+            bound.setReuseAddress (true);
+            bound.bind (new InetSocketAddress (portNumber));
+          } catch (IOException ex) {
+            bound.close ();
+            throw ex;
+          }
+          serverSocket = bound;
         } 
 
-        Socket clientSocket = serverSocket.accept();
-        BeamSocket beam = new BeamSocket (clientSocket);
-        receiveRequest (beam); 
-        beam.send ();
-        beam.close ();
+        final Socket socket = serverSocket.accept ();
+        socket.setTcpNoDelay (true);
+        if (connections == null) {
+          // One request per connection, on the listener thread
+          serve (new BeamSocket (socket), false);
+          continue;
+        }
+
+        connections.execute (new Runnable () {
+          public void run () {
+            accept (socket);
+          }
+        });
 
-      } catch (BeamFormatException ex) {
-        System.out.format ("[Err.] Web bad request: %s\n", ex.getMessage());
       } catch (IOException ex) {
         System.out.format ("[Err.] WebService: %s\n", ex.getMessage());
         //serverSocket = null;
@@ -236,17 +627,166 @@ public class WebService implements Runnable
     }
   }
 
+  /**
+   * Serve a connection, as a multiplexed one if the client opened it with
+   * the BeamMux preamble.
+   */
+  private void accept (Socket socket)
+  {
+    try {
+      InputStream input = new BufferedInputStream (socket.getInputStream(), 
+          BeamHelper.BUFFER_SIZE);
+      socket.setSoTimeout (REQUEST_TIMEOUT);
+      if (!BeamMux.readPreamble (input)) {
+        serve (new BeamSocket (socket, input), true);
+        return;
+      }
+
+      BeamMux.serve (socket, input, new BeamMux.Handler () {
+        public void handle (BeamMux.Stream stream) {
+          serve (stream, true);
+        }
+      }, connections, SERVER_IDLE_TIMEOUT);
+    } catch (IOException ex) {
+      System.out.format ("[Err.] WebService: %s\n", ex.getMessage());
+      try {
+        socket.close ();
+      } catch (IOException e) {
+      }
+    }
+  }
+
+  /**
+   * Serve every connection on a few selector threads instead of a 
+   * thread per connection, the requests on at most `maxInFlight` 
+   * workers.
+   */
+  private void listenNio () 
+  {
+    int threads = Runtime.getRuntime().availableProcessors();
+    ExecutorService workers = Executors.newFixedThreadPool (maxInFlight);
+    NioServer server = new NioServer (portNumber, threads, workers, new NioServer.Handler () {
+      public void handle (BeamSocket beam) 
+          throws IOException, BeamFormatException
+      {
+        receiveRequest (beam);
+        beam.send ();
+      }
+    });
+    server.setIdleTimeout (SERVER_IDLE_TIMEOUT);
+
+    for (;;) {
+      try {
+        System.out.format ("[Trace] Start listen at port %d (nio x%d)\n", portNumber, threads);
+        server.listen ();
+      } catch (IOException ex) {
+        System.out.format ("[Err.] WebService: %s\n", ex.getMessage());
+        try {
+          Thread.sleep (3500);
+        } catch (InterruptedException e) {
+        }
+      }
+    }
+  }
+
+  /**
+   * Each connection is served by its own virtual thread when the JVM has
+   * them (Java 21), by a pooled platform thread otherwise.
+   */
+  private static ExecutorService newVirtualExecutor ()
+  {
+    try {
+      Method method = Executors.class.getMethod ("newVirtualThreadPerTaskExecutor");
+      return (ExecutorService)method.invoke (null);
+    } catch (Exception e) {
+      System.out.format ("[Debug] No virtual threads, use a thread pool\n");
+      return Executors.newCachedThreadPool ();
+    }
+  }
+
+  /**
+   * Answer the requests of one connection until the client closes it or
+   * let it idle for too long. At most `inFlight` requests are handled at
+   * once, the others wait for a permit.
+   */
+  private void serve (BeamSocket beam, boolean keepAlive)
+  {
+    try {
+      beam.setBuckets (bucketsFor (beam));
+      do {
+        beam.setTimeout (REQUEST_TIMEOUT);
+        inFlight.acquireUninterruptibly ();
+        try {
+          receiveRequest (beam); 
+          beam.send ();
+        } finally {
+          inFlight.release ();
+        }
+        beam.setTimeout (SERVER_IDLE_TIMEOUT);
+      } while (keepAlive && beam.in.next ());
+
+    } catch (SocketTimeoutException ex) {
+      System.out.format ("[Debug] Close idle connection\n");
+    } catch (BeamFormatException ex) {
+      System.out.format ("[Err.] Web bad request: %s\n", ex.getMessage());
+    } catch (IOException ex) {
+      System.out.format ("[Err.] WebService: %s\n", ex.getMessage());
+    } finally {
+      try {
+        beam.close ();
+      } catch (IOException e) {
+      }
+    }
+  }
+
+  /**
+   * Run an exchange with the remote over a pooled connection. If a 
+   * reused connection turns out to be closed, it is retried once on a 
+   * new one.
+   */
+  private boolean exchange (Exchange ex)
+      throws IOException, BeamFormatException
+  {
+    for (int retry = 0; ; ++retry) {
+      BeamSocket beam = pool.acquire (remHost, remPort);
+      beam.setBuckets (bucketsFor (beam));
+      boolean reused = beam.getUses() > 0;
+      boolean done = false;
+      try {
+        boolean res = ex.run (beam);
+        done = true;
+        return res;
+      } catch (IOException e) {
+        if (!reused || retry > 0)
+          throw e;
+        System.out.format ("[Debug] Connection lost %s:%d, retry\n", remHost, remPort);
+      } finally {
+        if (done)
+          pool.release (beam);
+        else
+          pool.discard (beam);
+      }
+    }
+  }
+
   public void sendPing (String host, int port) 
   {
     try { 
       StopWatch chrono = new StopWatch();
-      BeamSocket beam = BeamSocket.connectTo (host, port);
-      chrono.start();
-      beam.out.writeString("ping", null);
-      beam.send ();
-      String res = beam.in.readLabel();
-      beam.in.readPass();
-      chrono.stop();
+      BeamSocket beam = pool.acquire (host, port);
+      String res;
+      try {
+        chrono.start();
+        beam.out.writeString("ping", null);
+        beam.send ();
+        res = beam.in.readLabel();
+        beam.in.readPass();
+        chrono.stop();
+      } catch (IOException | BeamFormatException ex) {
+        pool.discard (beam);
+        throw ex;
+      }
+      pool.release (beam);
       System.out.format ("[Trace] Ping %s:%d - %s {in:%dms}\n", host, port, res, chrono.getMillis());
 
     } catch (BeamFormatException ex) {
@@ -308,33 +848,335 @@ public class WebService implements Runnable
 
   }
 
-  public boolean get (String namespace, String object)
-      throws IOException
+  private boolean fetch (final String object)
+      throws IOException, BeamFormatException
   {
-    try {
+    System.out.format ("[Debug] Try connection %s:%s\n", remHost, remPort);
+    return exchange (new Exchange () {
+      public boolean run (BeamSocket beam) 
+          throws IOException, BeamFormatException
+      {
+        return fetch (beam, object);
+      }
+    });
+  }
 
-      System.out.format ("[Trace] Get file %s \n", object);
-      System.out.format ("[Debug] Try connection %s:%s\n", remHost, remPort);
-      BeamSocket beam = BeamSocket.connectTo (remHost, remPort);
-      beam.out.writeOpenObject("request");
-      beam.out.writeString("hash", object);
-      beam.out.writeString("date", (new Date()).toString());
-      beam.out.writeCloseObject();
-      beam.send();
-
-      String res = beam.in.readLabel();
-      switch (res) {
-        case "data":
-          receiveFile (beam, this.topDir);
-          System.out.format ("[Trace] Receive file %s \n", object);
-          break;
-
-        case "err":
-          readError (beam);
+  private boolean fetch (BeamSocket beam, String object)
+      throws IOException, BeamFormatException
+  {
+    beam.out.writeOpenObject("request");
+    beam.out.writeString("hash", object);
+    beam.out.writeString("date", (new Date()).toString());
+    beam.out.writeCloseObject();
+    beam.send();
+
+    String res = beam.in.readLabel();
+    switch (res) {
+      case "raw":
+        if (!receiveRaw (beam, this.topDir, object))
+          return false;
+        System.out.format ("[Trace] Receive file %s \n", object);
+        return true;
+
+      case "data":
+        receiveFile (beam, this.topDir);
+        System.out.format ("[Trace] Receive file %s \n", object);
+        return true;
+
+      case "err":
+        readError (beam);
+        return false;
+
+      default:
+        throw new BeamFormatException ("Unexpect response");
+    }
+  }
+
+  /**
+   * Fetch a record as a delta against `base`, a record we have that
+   * holds an older version of the same data.
+   */
+  private boolean fetchDelta (final String object, String base)
+      throws IOException, BeamFormatException
+  {
+    File fb = FileEntry.buildFileRecord(this.topDir, base);
+    final byte[] data = fb.exists() ? Delta.readAll (BeamIn.openStream (fb), DELTA_MAX) : null;
+    if (data == null || data.length < Delta.MIN_BLOCK)
+      return false;
+
+    final int blockSize = Delta.blockSize (data.length);
+    final byte[] signature = Delta.signature (data, data.length, blockSize);
+    return exchange (new Exchange () {
+      public boolean run (BeamSocket beam) 
+          throws IOException, BeamFormatException
+      {
+        return fetchDelta (beam, object, data, blockSize, signature);
+      }
+    });
+  }
+
+  private boolean fetchDelta (BeamSocket beam, String object, byte[] base, 
+      int blockSize, byte[] signature)
+      throws IOException, BeamFormatException
+  {
+    beam.out.writeOpenObject("delta");
+    beam.out.writeString("hash", object);
+    beam.out.writeInteger("range", blockSize);
+    beam.out.writeBytes("signature", signature);
+    beam.out.writeCloseObject();
+    beam.send();
+
+    String res = beam.in.readLabel();
+    if (res.equals ("err")) {
+      readError (beam);
+      return false;
+    } else if (!res.equals ("delta")) {
+      throw new BeamFormatException ("Unexpect response");
+    }
+
+    String label;
+    long length = -1;
+    long header = -1;
+    long received = 0;
+    ByteArrayOutputStream record = new ByteArrayOutputStream();
+    beam.in.readObject();
+    while ((label = beam.in.readLabel ()) != null) {
+      switch (label) {
+
+        case "length":
+          length = beam.in.readInteger ();
+          break;
+
+        case "header":
+          header = beam.in.readInteger ();
+          break;
+
+        case "ops":
+          beam.in.readCollection ();
+          while ((label = beam.in.readLabel ()) != null) {
+            if (label.equals ("data")) {
+              byte[] data = beam.in.readBytes ();
+              received += data.length;
+              record.write (data, 0, data.length);
+            } else if (label.equals ("copy")) {
+              long block = -1;
+              long count = 0;
+              beam.in.readObject ();
+              while ((label = beam.in.readLabel ()) != null) {
+                if (label.equals ("offset"))
+                  block = beam.in.readInteger ();
+                else if (label.equals ("count"))
+                  count = beam.in.readInteger ();
+                else
+                  beam.in.readPass ();
+              }
+              // Divided, not multiplied, so that no value overflows
+              int blocks = base.length / blockSize;
+              if (block < 0 || count < 0 || block > blocks || count > blocks - block)
+                throw new BeamFormatException ("Delta copy out of the base");
+              record.write (base, (int)block * blockSize, (int)count * blockSize);
+            } else {
+              beam.in.readPass ();
+            }
+            if (record.size() > DELTA_MAX)
+              throw new BeamFormatException ("Delta larger than announced");
+          }
           break;
 
         default:
+          beam.in.readPass ();
+          break;
+      }
+    }
+
+    if (length != record.size() || header < 0 || header > length)
+      throw new BeamFormatException ("Delta doesn't match its length");
+
+    File tmp = FileEntry.buildTempFile (this.topDir, "delta");
+    BeamOut bOut = new BeamOut (tmp);
+    bOut.writeStream (new ByteArrayInputStream (record.toByteArray()), (int)header);
+    bOut.close ();
+    if (!FileEntry.verifyRecord (tmp, object)) {
+      tmp.delete ();
+      System.err.format ("[Err.] Delta rebuilt a corrupted record %s\n", object);
+      return false;
+    }
+
+    FileEntry.commitRecord (this.topDir, object, tmp);
+    System.out.format ("[Trace] Receive delta %s, %d of %d bytes sent\n", 
+        object, received, length);
+    return true;
+  }
+
+  /**
+   * Read the `raw` object announcing a payload, return its length.
+   */
+  private long readRawHeader (BeamSocket beam, String hash) 
+      throws BeamFormatException, IOException
+  {
+    String label;
+    String rawHash = null;
+    long length = -1;
+    beam.in.readObject();
+    while ((label = beam.in.readLabel ()) != null) {
+      switch (label) {
+
+        case "hash":
+          rawHash = beam.in.readString ();
+          break;
+
+        case "length":
+          length = beam.in.readInteger ();
+          break;
+
+        default:
+          beam.in.readPass ();
+          break;
+      }
+    }
+
+    if (rawHash == null || length < 0)
+      throw new BeamFormatException ("Missing raw 'hash' or 'length'");
+    if (!rawHash.equals (hash))
+      throw new BeamFormatException ("Unexpected raw object");
+    return length;
+  }
+
+  /**
+   * Tell the remote which objects we have, in one message, and fetch 
+   * those it has and we don't.
+   */
+  public void pull ()
+  {
+    final RemoteSlots slots = getRemoteSlots (BeamPool.remoteKey (remHost, remPort));
+    downloads.execute (new Runnable () {
+      public void run () {
+        try {
+          List<String> missing = negotiate ();
+          System.out.format ("[Trace] Pull %d objects\n", missing.size());
+          for (final String object : missing) {
+            download (slots, new Runnable () {
+              public void run () {
+                try {
+                  if (!FileEntry.buildFileRecord(topDir, object).exists())
+                    fetch (object);
+                } catch (BeamFormatException ex) {
+                  System.out.format ("[Err.] Erorr format response %s\n", ex.getMessage());
+                } catch (IOException ex) {
+                  System.out.format ("[Err.] IOError %s\n", ex.getMessage());
+                }
+              }
+            });
+          }
+        } catch (BeamFormatException ex) {
+          System.out.format ("[Err.] Erorr format response %s\n", ex.getMessage());
+        } catch (IOException ex) {
+          System.out.format ("[Err.] IOError %s\n", ex.getMessage());
+        }
+      }
+    });
+  }
+
+  private List<String> negotiate ()
+      throws IOException, BeamFormatException
+  {
+    final List<String> missing = new ArrayList<String> ();
+    final List<String> local = FileEntry.listRecords (topDir);
+    exchange (new Exchange () {
+      public boolean run (BeamSocket beam) 
+          throws IOException, BeamFormatException
+      {
+        missing.clear ();
+        beam.out.writeOpenObject("have");
+        if (local.size() <= EXACT_HAVE) {
+          List<byte[]> keys = new ArrayList<byte[]> (local.size());
+          for (String hash : local)
+            keys.add (BeamHelper.stringToBytes (hash));
+          beam.out.writeBytes("hashes", new DigestList (keys).toBytes());
+        } else {
+          // A new seed each time, an object hidden by a false positive 
+          // is found on a later pull.
+          BloomFilter filter = new BloomFilter (local.size(), HAVE_FPP, new Random().nextLong());
+          for (String hash : local)
+            filter.add (BeamHelper.stringToBytes (hash));
+          beam.out.writeInteger("seed", filter.getSeed());
+          beam.out.writeInteger("count", filter.getHashCount());
+          beam.out.writeBytes("filter", filter.toBytes());
+        }
+        beam.out.writeCloseObject();
+        beam.send();
+
+        String res = beam.in.readLabel();
+        if (res.equals ("err")) {
+          readError (beam);
+          return false;
+        } else if (!res.equals ("missing")) {
           throw new BeamFormatException ("Unexpect response");
+        }
+
+        String label;
+        beam.in.readCollection();
+        while ((label = beam.in.readLabel ()) != null) {
+          if (label.equals ("hash"))
+            missing.add (beam.in.readString ());
+          else
+            beam.in.readPass ();
+        }
+        return true;
+      }
+    });
+    return missing;
+  }
+
+  private boolean receiveRaw (BeamSocket beam, Path top, String hash) 
+      throws BeamFormatException, IOException
+  {
+    long length = readRawHeader (beam, hash);
+
+    File tmp = FileEntry.buildTempFile (top, "recv");
+    beam.in.readPayload (tmp, length);
+    if (!FileEntry.verifyRecord (tmp, hash)) {
+      tmp.delete ();
+      System.err.format ("[Err.] Received a corrupted record %s\n", hash);
+      return false;
+    }
+
+    FileEntry.commitRecord (top, hash, tmp);
+    return true;
+  }
+
+  public boolean get (String namespace, String object)
+      throws IOException
+  {
+    return get (namespace, object, null);
+  }
+
+  /**
+   * Fetch a record and the objects it refers to, those of `base` are
+   * used to receive them as deltas.
+   */
+  public boolean get (String namespace, String object, String base)
+      throws IOException
+  {
+    try {
+
+      System.out.format ("[Trace] Get file %s \n", object);
+      if (!FileEntry.buildFileRecord(this.topDir, object).exists() && !fetch (object))
+        return false;
+
+      // Only ask for the blobs and chunks we don't have yet, as deltas
+      // against the previous version when we still have it. Records 
+      // already here are walked too, a pull may not have their children.
+      LinkedList<String[]> refs = new LinkedList<String[]> ();
+      refs.addAll (FileEntry.deltaReferences (this.topDir, object, base));
+      while (!refs.isEmpty()) {
+        String[] ref = refs.removeFirst ();
+        if (!FileEntry.buildFileRecord(this.topDir, ref[0]).exists()) {
+          boolean done = ref[1] != null && fetchDelta (ref[0], ref[1]);
+          if (!done && !fetch (ref[0]))
+            return false;
+        }
+        refs.addAll (FileEntry.deltaReferences (this.topDir, ref[0], ref[1]));
       }
       return true;
     } catch (BeamFormatException ex) {
@@ -348,45 +1190,305 @@ public class WebService implements Runnable
     return false;
   }
 
-  public void async (String namespace, String object, ILoadable bucket)
+  /**
+   * Download in background, the bucket is told once it is done. 
+   */
+  public void async (final String namespace, final String object, 
+      final String base, final ILoadable bucket)
+  {
+    download (getRemoteSlots (BeamPool.remoteKey (remHost, remPort)), new Runnable () {
+      public void run () {
+        boolean done = false;
+        try {
+          done = get (namespace, object, base);
+        } catch (IOException e) {
+        } catch (RuntimeException e) {
+          System.out.format ("[Err.] Load of %s failed: %s\n", object, e);
+        } finally {
+          // The entry waits in Loading until it is told
+          bucket.laodFinish (done, done ? null : "Unable to load " + object);
+        }
+      }
+    });
+  }
+
+  private RemoteSlots getRemoteSlots (String remote)
   {
-    bucket.laodFinish (false, "Unable to load using this method");
+    synchronized (remoteSlots) {
+      RemoteSlots slots = remoteSlots.get (remote);
+      if (slots == null) {
+        slots = new RemoteSlots ();
+        remoteSlots.put (remote, slots);
+      }
+      return slots;
+    }
   }
 
-  public void peer (String namespace, String object, ILoadable bucket)
+  /**
+   * Queue a download behind the others of its remote, it goes to the
+   * pool once the remote has a free slot.
+   */
+  private void download (RemoteSlots slots, Runnable task)
   {
-    bucket.laodFinish (false, "Unable to load using this method");
+    slots.waiting.add (task);
+    drain (slots);
   }
 
+  private void drain (final RemoteSlots slots)
+  {
+    while (!slots.waiting.isEmpty() && slots.slots.tryAcquire ()) {
+      final Runnable task = slots.waiting.poll ();
+      if (task == null) {
+        slots.slots.release ();
+        continue;
+      }
+      downloads.execute (new Runnable () {
+        public void run () {
+          try {
+            task.run ();
+          } finally {
+            slots.slots.release ();
+            drain (slots);
+          }
+        }
+      });
+    }
+  }
 
-  public void sendUpdate (Path path, String hash, String pHash, long version, String type) 
+  /**
+   * Download a large file in background. The records are fetched by 
+   * ranges on several connections at once, and a transfer interrupted 
+   * resumes from the ranges already received.
+   */
+  public void peer (final String namespace, final String object, final ILoadable bucket)
+  {
+    download (getRemoteSlots (BeamPool.remoteKey (remHost, remPort)), new Runnable () {
+      public void run () {
+        boolean done = false;
+        try {
+          done = getRanges (object);
+        } catch (RuntimeException e) {
+          System.out.format ("[Err.] Load of %s failed: %s\n", object, e);
+        } finally {
+          bucket.laodFinish (done, done ? null : "Unable to load " + object);
+        }
+      }
+    });
+  }
+
+  /**
+   * Fetch a record and everything it refers to, level by level. All 
+   * records are walked, a previous attempt may have left only some of 
+   * the chunks.
+   */
+  private boolean getRanges (String object)
   {
     try {
-      // System.out.format("[update] %s -> %s\n", hash, path);
+      System.out.format ("[Trace] Get file by ranges %s \n", object);
+      Collection<String> level = Collections.singleton (object);
+      while (!level.isEmpty()) {
+        List<String> missing = new ArrayList<String> ();
+        for (String ref : level) {
+          if (!FileEntry.buildFileRecord(this.topDir, ref).exists())
+            missing.add (ref);
+        }
 
-      BeamSocket beam = BeamSocket.connectTo (remHost, remPort);
-      beam.out.writeOpenObject("update");
-      beam.out.writeString("hash", hash);
-      beam.out.writeString("url", path.toString());
-      beam.out.writeString("parent", pHash);
-      beam.out.writeInteger("version", version);
-      beam.out.writeString("type", type);
-      beam.out.writeCloseObject();
-      beam.send();
-      String res = beam.in.readLabel();
-      switch (res) {
-        case "ACK":
-          beam.in.readPass();
-          System.out.format ("[Trace] Update %s acknowledged\n", hash);
-          break;
-
-        case "err":
+        for (int i = 0; i < missing.size(); i += PEER_BATCH) {
+          if (!download (missing.subList (i, Math.min (missing.size(), i + PEER_BATCH))))
+            return false;
+        }
+
+        LinkedHashSet<String> next = new LinkedHashSet<String> ();
+        for (String ref : level)
+          next.addAll (FileEntry.references (this.topDir, ref));
+        level = next;
+      }
+      return true;
+    } catch (BeamFormatException ex) {
+      System.out.format ("[Err.] Erorr format response %s\n", ex.getMessage());
+    } catch (UnknownHostException ex) {
+      System.out.format ("[Err.] Unknown host %s\n", ex.getMessage());
+    } catch (IOException ex) {
+      System.out.format ("[Err.] IOError %s\n", ex.getMessage());
+    } catch (InterruptedException ex) {
+    }
+
+    return false;
+  }
+
+  /**
+   * Download the missing ranges of a few records on PEER_STREAMS 
+   * connections, then commit the records.
+   */
+  private boolean download (List<String> hashes)
+      throws IOException, BeamFormatException, InterruptedException
+  {
+    List<RecordPart> parts = new ArrayList<RecordPart> ();
+    try {
+      for (String hash : hashes) {
+        RecordPart part = stat (hash);
+        if (part == null)
+          return false;
+        part.open ();
+        parts.add (part);
+      }
+
+      ExecutorCompletionService<Boolean> ranges = 
+          new ExecutorCompletionService<Boolean> (rangeWorkers);
+      int count = 0;
+      for (final RecordPart part : parts) {
+        for (final int index : part.missing ()) {
+          ranges.submit (new Callable<Boolean> () {
+            public Boolean call () throws Exception {
+              return fetchRange (part, index);
+            }
+          });
+          count++;
+        }
+      }
+
+      boolean success = true;
+      for (; count > 0; --count) {
+        try {
+          if (!ranges.take().get())
+            success = false;
+        } catch (ExecutionException ex) {
+          System.out.format ("[Err.] Range failed: %s\n", ex.getCause().getMessage());
+          success = false;
+        }
+      }
+      if (!success)
+        return false;
+
+      for (RecordPart part : parts) {
+        if (!part.commit ()) {
+          System.err.format ("[Err.] Received a corrupted record %s\n", part.hash);
+          return false;
+        }
+      }
+      System.out.format ("[Trace] Receive %d files by ranges\n", parts.size());
+      return true;
+    } finally {
+      for (RecordPart part : parts)
+        part.close ();
+    }
+  }
+
+  private RecordPart stat (final String hash)
+      throws IOException, BeamFormatException
+  {
+    final RecordPart[] part = new RecordPart[1];
+    exchange (new Exchange () {
+      public boolean run (BeamSocket beam) 
+          throws IOException, BeamFormatException
+      {
+        beam.out.writeOpenObject("stat");
+        beam.out.writeString("hash", hash);
+        beam.out.writeCloseObject();
+        beam.send();
+
+        String res = beam.in.readLabel();
+        if (res.equals ("err")) {
           readError (beam);
-          break;
+          return false;
+        } else if (!res.equals ("stat")) {
+          throw new BeamFormatException ("Unexpect response");
+        }
 
-        default:
+        String label;
+        long length = -1;
+        int range = 0;
+        byte[] leaves = null;
+        beam.in.readObject();
+        while ((label = beam.in.readLabel ()) != null) {
+          switch (label) {
+
+            case "length":
+              length = beam.in.readInteger ();
+              break;
+
+            case "range":
+              range = (int)beam.in.readInteger ();
+              break;
+
+            case "leaves":
+              leaves = beam.in.readBytes ();
+              break;
+
+            default:
+              beam.in.readPass ();
+              break;
+          }
+        }
+
+        if (length < 0 || range <= 0 || leaves == null)
+          throw new BeamFormatException ("Missing stat fields");
+        part[0] = new RecordPart (topDir, hash, length, range, leaves);
+        return true;
+      }
+    });
+    return part[0];
+  }
+
+  private boolean fetchRange (final RecordPart part, final int index)
+      throws IOException, BeamFormatException
+  {
+    return exchange (new Exchange () {
+      public boolean run (BeamSocket beam) 
+          throws IOException, BeamFormatException
+      {
+        int length = part.getLength (index);
+        beam.out.writeOpenObject("request");
+        beam.out.writeString("hash", part.hash);
+        beam.out.writeInteger("offset", part.getOffset (index));
+        beam.out.writeInteger("length", length);
+        beam.out.writeCloseObject();
+        beam.send();
+
+        String res = beam.in.readLabel();
+        if (res.equals ("err")) {
+          readError (beam);
+          return false;
+        } else if (!res.equals ("raw")) {
           throw new BeamFormatException ("Unexpect response");
+        }
+
+        if (readRawHeader (beam, part.hash) != length)
+          throw new BeamFormatException ("Unexpected range length");
+        byte[] data = new byte[length];
+        beam.in.readPayload (data, length);
+        if (!part.write (index, data, length)) {
+          System.err.format ("[Err.] Received a corrupted range %s:%d\n", part.hash, index);
+          return false;
+        }
+        return true;
       }
+    });
+  }
+
+
+  public void sendUpdate (final Path path, final String hash, final String pHash, 
+      final long version, final long length, final String type) 
+  {
+    try {
+      // System.out.format("[update] %s -> %s\n", hash, path);
+
+      exchange (new Exchange () {
+        public boolean run (BeamSocket beam) 
+            throws IOException, BeamFormatException
+        {
+          beam.out.writeOpenObject("update");
+          beam.out.writeString("hash", hash);
+          beam.out.writeString("url", path.toString());
+          beam.out.writeString("parent", pHash);
+          beam.out.writeInteger("version", version);
+          beam.out.writeString("type", type);
+          beam.out.writeInteger("length", length);
+          beam.out.writeCloseObject();
+          beam.send();
+          return readAck (beam, "Update", hash);
+        }
+      });
 
     } catch (BeamFormatException ex) {
       System.out.format ("[Err.] Erorr format response %s\n", ex.getMessage());
@@ -398,32 +1500,53 @@ public class WebService implements Runnable
   }
 
 
-  public void sendDelete (Path path, String hash, long version)
+  public void sendDelete (final Path path, final String hash, final long version)
   {
     try {
       // System.out.format("[update] %s -> %s\n", hash, path);
 
-      BeamSocket beam = BeamSocket.connectTo (remHost, remPort);
-      beam.out.writeOpenObject("delete");
-      beam.out.writeString("hash", hash);
-      beam.out.writeString("url", path.toString());
-      beam.out.writeInteger("version", version);
-      beam.out.writeCloseObject();
-      beam.send();
-      String res = beam.in.readLabel();
-      switch (res) {
-        case "ACK":
-          beam.in.readPass();
-          System.out.format ("[Trace] Delete %s acknowledged\n", hash);
-          break;
-
-        case "err":
-          readError (beam);
-          break;
+      exchange (new Exchange () {
+        public boolean run (BeamSocket beam) 
+            throws IOException, BeamFormatException
+        {
+          beam.out.writeOpenObject("delete");
+          beam.out.writeString("hash", hash);
+          beam.out.writeString("url", path.toString());
+          beam.out.writeInteger("version", version);
+          beam.out.writeCloseObject();
+          beam.send();
+          return readAck (beam, "Delete", hash);
+        }
+      });
 
-        default:
-          throw new BeamFormatException ("Unexpect response");
-      }
+    } catch (BeamFormatException ex) {
+      System.out.format ("[Err.] Erorr format response %s\n", ex.getMessage());
+    } catch (UnknownHostException ex) {
+      System.out.format ("[Err.] Unknown host %s\n", ex.getMessage());
+    } catch (IOException ex) {
+      System.out.format ("[Err.] IOError %s\n", ex.getMessage());
+    }
+  }
+
+  /**
+   * Send a batch of changes in one message, false if it should be sent 
+   * again later.
+   */
+  public boolean sendBatch (final List<Outbox.Change> batch) 
+  {
+    try {
+      return exchange (new Exchange () {
+        public boolean run (BeamSocket beam) 
+            throws IOException, BeamFormatException
+        {
+          beam.out.writeOpenCollection("updates");
+          for (Outbox.Change change : batch)
+            change.write (beam.out);
+          beam.out.writeCloseCollection();
+          beam.send();
+          return readAck (beam, "Batch of", Integer.toString (batch.size()));
+        }
+      });
 
     } catch (BeamFormatException ex) {
       System.out.format ("[Err.] Erorr format response %s\n", ex.getMessage());
@@ -432,6 +1555,55 @@ public class WebService implements Runnable
     } catch (IOException ex) {
       System.out.format ("[Err.] IOError %s\n", ex.getMessage());
     }
+    return false;
+  }
+
+  private boolean readAck (BeamSocket beam, String what, String hash) 
+      throws IOException, BeamFormatException
+  {
+    String res = beam.in.readLabel();
+    switch (res) {
+      case "ACK":
+        beam.in.readPass();
+        System.out.format ("[Trace] %s %s acknowledged\n", what, hash);
+        return true;
+
+      case "err":
+        readError (beam);
+        return false;
+
+      case "busy":
+        readBusy (beam);
+        return false;
+
+      default:
+        throw new BeamFormatException ("Unexpect response");
+    }
+  }
+
+  private void readBusy (BeamSocket beam) 
+      throws BeamFormatException, IOException
+  {
+    String label;
+    long delay = BUSY_DELAY;
+    beam.in.readObject();
+    while ((label = beam.in.readLabel ()) != null) {
+      if (label.equals ("delay"))
+        delay = beam.in.readInteger ();
+      else
+        beam.in.readPass ();
+    }
+
+    System.out.format ("[Debug] Remote busy, retry in %dms\n", delay);
+    busyUntil = System.currentTimeMillis() + delay;
+  }
+
+  /**
+   * Time in ms the remote asked us to wait before sending more changes.
+   */
+  public long getBusyDelay ()
+  {
+    return Math.max (0, busyUntil - System.currentTimeMillis());
   }
 
 
@@ -440,10 +1612,88 @@ public class WebService implements Runnable
     this.portNumber = port;
   }
 
+  public void setServerMode (String mode) 
+  {
+    if (!mode.equals ("single") && !mode.equals ("thread") 
+        && !mode.equals ("virtual") && !mode.equals ("nio"))
+      throw new IllegalArgumentException ("Unknown server mode: " + mode);
+    this.serverMode = mode;
+  }
+
+  /**
+   * Cap the requests served at once, by the workers of the nio mode too.
+   */
+  public void setMaxInFlight (int count) 
+  {
+    this.inFlight = new Semaphore(count);
+    this.maxInFlight = count;
+  }
+
+  /**
+   * Send the requests to each remote as streams of one connection, if
+   * it accepts it.
+   */
+  public void setMultiplex (boolean multiplex) 
+  {
+    pool.setMultiplex (multiplex);
+  }
+
+  /**
+   * Limit the raw data exchanged with all the remotes, in bytes per
+   * second, 0 for no limit.
+   */
+  public void setBandwidth (long rate) 
+  {
+    this.totalRate = rate > 0 ? new TokenBucket (rate) : null;
+  }
+
+  /**
+   * Limit the raw data exchanged with each remote, in bytes per second.
+   */
+  public void setRemoteBandwidth (long rate) 
+  {
+    synchronized (remoteRates) {
+      this.remoteRate = rate;
+      remoteRates.clear ();
+    }
+  }
+
+  /**
+   * The buckets raw data exchanged on this connection draws from, null
+   * if there is no limit.
+   */
+  private TokenBucket[] bucketsFor (BeamSocket beam)
+  {
+    TokenBucket remote = null;
+    synchronized (remoteRates) {
+      if (remoteRate > 0) {
+        String key = beam.socket.getInetAddress().getHostAddress();
+        remote = remoteRates.get (key);
+        if (remote == null) {
+          remote = new TokenBucket (remoteRate);
+          remoteRates.put (key, remote);
+        }
+      }
+    }
+
+    if (totalRate != null && remote != null)
+      return new TokenBucket[] { totalRate, remote };
+    else if (totalRate != null)
+      return new TokenBucket[] { totalRate };
+    else if (remote != null)
+      return new TokenBucket[] { remote };
+    return null;
+  }
+
   private String remHost = null;
   private int remPort;
 
 
+  public boolean hasRemote () 
+  {
+    return remHost != null;
+  }
+
   public void addRemote (String name) 
   {
     int k = name.indexOf (':');
@@ -453,6 +1703,7 @@ public class WebService implements Runnable
         remHost, remPort);
 
     sendPing (remHost, remPort);
+    pull ();
   }
 
   public void run () 
@@ -0,0 +1,201 @@
+/*
+      pbox - personnal/private cloud box
+    Copyright (C) 2014 <Fabien Bavent>
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package ax.io;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Compression used for the body of a record. The codec id and level are
+ * written in the record header so the reader picks the same decoder.
+ */
+public abstract class BeamCodec
+{
+  public static final int NONE = 0;
+  public static final int DEFLATE = 1;
+  public static final int LZ = 2;
+
+  private static final int SAMPLE_SIZE = 64 * 1024;
+  private static BeamCodec preferred = new Deflate (Deflater.DEFAULT_COMPRESSION);
+
+  public abstract int getId ();
+
+  public int getLevel ()
+  {
+    return 0;
+  }
+
+  public abstract OutputStream encode (OutputStream out)
+      throws IOException;
+
+  public abstract InputStream decode (InputStream in)
+      throws IOException;
+
+  public static BeamCodec forId (int id, int level)
+      throws IOException
+  {
+    switch (id) {
+      case NONE:
+        return new None ();
+      case DEFLATE:
+        return new Deflate (level == 0xff ? Deflater.DEFAULT_COMPRESSION : level);
+      case LZ:
+        return new Lz ();
+      default:
+        throw new IOException ("Unknown codec " + id);
+    }
+  }
+
+  /**
+   * Parse a codec name as given on the command line: none, lz, deflate 
+   * or deflate:LEVEL.
+   */
+  public static BeamCodec forName (String name)
+  {
+    if (name.equals ("none"))
+      return new None ();
+    if (name.equals ("lz"))
+      return new Lz ();
+    if (name.startsWith ("deflate:"))
+      return new Deflate (Integer.parseInt (name.substring(8)));
+    if (name.equals ("deflate"))
+      return new Deflate (Deflater.DEFAULT_COMPRESSION);
+    throw new IllegalArgumentException ("Unknown codec " + name);
+  }
+
+  public static BeamCodec getDefault ()
+  {
+    return preferred;
+  }
+
+  public static void setDefault (BeamCodec codec)
+  {
+    preferred = codec;
+  }
+
+  /**
+   * Pick the codec for some content: samples taken at the start and in 
+   * the middle are deflated at the fastest level, content which doesn't 
+   * shrink is stored as is.
+   */
+  public static BeamCodec choose (FileChannel ch, long offset, long length)
+      throws IOException
+  {
+    if (preferred.getId() == NONE || length < 512)
+      return preferred;
+
+    int first = (int)Math.min (length, SAMPLE_SIZE);
+    long middle = Math.max (SAMPLE_SIZE, length / 2);
+    int second = (int)Math.min (length - middle, SAMPLE_SIZE);
+    byte[] sample = new byte[first + Math.max (second, 0)];
+    int size = Math.max (ch.read (ByteBuffer.wrap (sample, 0, first), offset), 0);
+    if (second > 0) {
+      size += Math.max (ch.read (ByteBuffer.wrap (sample, size, second), 
+          offset + middle), 0);
+    }
+
+    Deflater def = new Deflater (Deflater.BEST_SPEED);
+    byte[] res = new byte[size + 64];
+    def.setInput (sample, 0, size);
+    def.finish ();
+    int lg = 0;
+    while (!def.finished() && lg < res.length)
+      lg += def.deflate (res, lg, res.length - lg);
+    def.end ();
+
+    if (lg > size * 9 / 10)
+      return new None ();
+    return preferred;
+  }
+
+  /* === Codecs ============================================================ */
+
+  static class None extends BeamCodec
+  {
+    public int getId ()
+    {
+      return NONE;
+    }
+
+    public OutputStream encode (OutputStream out)
+    {
+      return new BufferedOutputStream (out, BeamHelper.BUFFER_SIZE);
+    }
+
+    public InputStream decode (InputStream in)
+    {
+      return in;
+    }
+  }
+
+  static class Deflate extends BeamCodec
+  {
+    private int level;
+
+    Deflate (int level)
+    {
+      this.level = level;
+    }
+
+    public int getId ()
+    {
+      return DEFLATE;
+    }
+
+    public int getLevel ()
+    {
+      return level < 0 ? 0xff : level;
+    }
+
+    public OutputStream encode (OutputStream out)
+    {
+      return new DeflaterOutputStream (out, 
+          new Deflater (level), BeamHelper.BUFFER_SIZE);
+    }
+
+    public InputStream decode (InputStream in)
+    {
+      return new InflaterInputStream (in, 
+          new Inflater (), BeamHelper.BUFFER_SIZE);
+    }
+  }
+
+  static class Lz extends BeamCodec
+  {
+    public int getId ()
+    {
+      return LZ;
+    }
+
+    public OutputStream encode (OutputStream out)
+    {
+      return new LzOutputStream (out);
+    }
+
+    public InputStream decode (InputStream in)
+    {
+      return new LzInputStream (in);
+    }
+  }
+}
+
@@ -21,18 +21,69 @@ import java.nio.ByteBuffer;
 
 public class BeamHelper 
 {
+  public static final int BUFFER_SIZE = 64 * 1024;
+
+  // Records start with this magic, the codec id and level on one byte 
+  // each, then the header length on 4 bytes
+  public static final byte[] RECORD_MAGIC = { 'B', 'e', 'a', 'm' };
+  // Larger header lengths are taken as a corrupted record
+  public static final int MAX_HEADER = 16 * 1024 * 1024;
+
+  // Labels of the protocol, decoded without allocating a new String
+  private static final String[] VOCABULARY = {
+    "data", "name", "type", "parent", "version", "content", "blob", 
+    "chunks", "chunk", "length", "hash", "url", "date", "record", 
+    "request", "update", "delete", "ping", "pong", "ACK", "err", "msg", 
+    "raw", "updates", "offset", "stat", "leaves", "range", "have", 
+    "missing", "filter", "seed", "count", "hashes", "delta", "signature",
+    "ops", "copy", "header", "busy", "delay",
+  };
+
+  private static final byte[][] LABELS = new byte[VOCABULARY.length][];
+
+  static {
+    for (int i = 0; i < VOCABULARY.length; ++i) {
+      LABELS[i] = VOCABULARY[i].getBytes();
+    }
+  }
+
+  public static String lookupLabel (byte[] buffer, int off, int length)
+  {
+    for (int k = 0; k < LABELS.length; ++k) {
+      byte[] label = LABELS[k];
+      if (label.length != length)
+        continue;
+
+      int i = 0;
+      while (i < length && label[i] == buffer[off + i])
+        i++;
+      if (i == length)
+        return VOCABULARY[k];
+    }
+    return null;
+  }
+
   public static byte[] longToBytes(long x) {
-    ByteBuffer buffer = ByteBuffer.allocate(8);
-    buffer.putLong(x);
-    return buffer.array();
+    byte[] data = new byte[8];
+    for (int i = 7; i >= 0; --i) {
+      data[i] = (byte)x;
+      x >>>= 8;
+    }
+    return data;
   }
 
   public static long bytesToLong(byte[] bytes) 
   {
-    ByteBuffer buffer = ByteBuffer.allocate(8);
-    buffer.put(bytes);
-    buffer.flip();//need flip 
-    return buffer.getLong();
+    return bytesToLong (bytes, 0);
+  }
+
+  public static long bytesToLong(byte[] bytes, int off) 
+  {
+    long value = 0;
+    for (int i = 0; i < 8; ++i) {
+      value = (value << 8) | (bytes[off + i] & 0xff);
+    }
+    return value;
   }
 
   public static String bytesToString (byte[] hash) 
@@ -45,5 +96,14 @@ public class BeamHelper
     return sb.toString();
   }
 
+  public static byte[] stringToBytes (String hash) 
+  {
+    byte[] data = new byte[hash.length() / 2];
+    for (int i = 0; i < data.length; i++) {
+      data[i] = (byte)Integer.parseInt (hash.substring (2 * i, 2 * i + 2), 16);
+    }
+    return data;
+  }
+
 
 }
\ No newline at end of file
@@ -19,45 +19,255 @@ package ax.io;
 
 import java.io.*;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.Date;
+import java.util.zip.Inflater;
 import java.util.zip.InflaterInputStream;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import ax.util.TokenBucket;
 
 public class BeamIn
 {
+  private static final int WINDOW_SIZE = 8 * 1024;
+
   private InputStream in;
+  private MessageInputStream stream;
   private MessageDigest key;
+  private byte[] buffer;
+
+  // Decoded bytes are read through this window, [hashed, pos) have been
+  // consumed but are not yet part of the key.
+  private byte[] window;
+  private int pos;
+  private int limit;
+  private int hashed;
+  private boolean headerOnly;
+  private TokenBucket[] buckets;
 
   public BeamIn(File data) 
-      throws FileNotFoundException
+      throws IOException
   {
-    this.in = new InflaterInputStream(new FileInputStream(data));
+    this (data, false);
+  }
+
+  /**
+   * With headerOnly, only the uncompressed header of the record is read, 
+   * readLabel returns null once its fields are exhausted.
+   */
+  public BeamIn(File data, boolean headerOnly) 
+      throws IOException
+  {
+    byte[] head = headerOnly ? readHeader (data) : null;
+    if (head != null) {
+      this.in = new ByteArrayInputStream(head);
+      this.headerOnly = true;
+    } else {
+      this.in = openStream (data);
+    }
+    this.window = new byte[WINDOW_SIZE];
     try {
     this.key = MessageDigest.getInstance("SHA1");
     } catch (NoSuchAlgorithmException e) {
     }
   }
 
+  /**
+   * Read messages from a connection, nothing is hashed on this side.
+   */
   public BeamIn(InputStream data) 
       throws FileNotFoundException
   {
-    this.in = new InflaterInputStream(data);
+    this.stream = new MessageInputStream(data);
+    this.in = this.stream;
+    this.window = new byte[WINDOW_SIZE];
+  }
+
+  /**
+   * Read the messages assembled by a non-blocking connection, each 
+   * message is read once the decoder has it complete.
+   */
+  public BeamIn(MessageDecoder decoder) 
+  {
+    this.in = decoder;
+    this.window = new byte[WINDOW_SIZE];
+  }
+
+  private static boolean hasMagic (InputStream fp)
+      throws IOException
+  {
+    byte[] magic = new byte[4];
+    fp.mark (4);
     try {
-    this.key = MessageDigest.getInstance("SHA1");
-    } catch (NoSuchAlgorithmException e) {
+      new DataInputStream(fp).readFully (magic);
+    } catch (EOFException e) {
+      fp.reset ();
+      return false;
     }
+
+    for (int i = 0; i < 4; ++i) {
+      if (magic[i] != BeamHelper.RECORD_MAGIC[i]) {
+        fp.reset ();
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * The decoded Beam stream of a record, header included, as it is 
+   * hashed.
+   */
+  public static InputStream openStream (File data)
+      throws IOException
+  {
+    InputStream fp = new BufferedInputStream(new FileInputStream(data), 
+        BeamHelper.BUFFER_SIZE);
+    DataInputStream din = new DataInputStream(fp);
+    if (!hasMagic (fp))
+      return BeamCodec.forId (BeamCodec.DEFLATE, 0xff).decode (fp);
+
+    int id = din.readUnsignedByte ();
+    BeamCodec codec = BeamCodec.forId (id, din.readUnsignedByte ());
+    byte[] head = readHead (din);
+    return new SequenceInputStream(new ByteArrayInputStream(head), 
+        codec.decode (fp));
+  }
+
+  /**
+   * The uncompressed header of a record, null for legacy records.
+   */
+  public static byte[] readHeader (File data)
+      throws IOException
+  {
+    InputStream fp = new BufferedInputStream(new FileInputStream(data), 16);
+    try {
+      if (!hasMagic (fp))
+        return null;
+      DataInputStream din = new DataInputStream(fp);
+      din.readUnsignedShort ();
+      return readHead (din);
+    } finally {
+      fp.close ();
+    }
+  }
+
+  private static byte[] readHead (DataInputStream din)
+      throws IOException
+  {
+    int lg = din.readInt ();
+    if (lg < 0 || lg > BeamHelper.MAX_HEADER)
+      throw new IOException ("Bad record header length " + lg);
+    byte[] head = new byte[lg];
+    din.readFully (head);
+    return head;
   }
 
+  /* === Window ============================================================ */
+
+  private void hash (byte[] data, int off, int len)
+  {
+    if (key != null)
+      key.update (data, off, len);
+  }
+
+  /**
+   * The leaf size of a TREE field, checked even when nothing is hashed.
+   */
+  private TreeHash readTree ()
+      throws IOException, BeamFormatException
+  {
+    int leafSize = readU29 ();
+    if (leafSize < TreeHash.MIN_LEAF_SIZE || leafSize > TreeHash.MAX_LEAF_SIZE)
+      throw new BeamFormatException ("Bad leaf size: " + leafSize);
+    return key != null ? new TreeHash (leafSize) : null;
+  }
+
+  private void flushKey ()
+  {
+    if (pos > hashed) {
+      hash (window, hashed, pos - hashed);
+    }
+    hashed = pos;
+  }
+
+  /**
+   * Make sure at least `count` bytes are available in the window.
+   */
+  private boolean fill (int count)
+      throws IOException
+  {
+    if (limit - pos >= count)
+      return true;
+
+    flushKey ();
+    if (pos > 0) {
+      System.arraycopy (window, pos, window, 0, limit - pos);
+      limit -= pos;
+      pos = 0;
+      hashed = 0;
+    }
+
+    while (limit < count) {
+      int lg = in.read (window, limit, window.length - limit);
+      if (lg < 0)
+        return false;
+      limit += lg;
+    }
+    return true;
+  }
+
+  private int readByte ()
+      throws IOException
+  {
+    if (pos == limit && !fill (1))
+      return -1;
+    return window[pos++] & 0xff;
+  }
+
+  /**
+   * Read bulk bytes which are not accounted in the key, the caller 
+   * decides how to hash them.
+   */
+  private int readRaw (byte[] data, int off, int len)
+      throws IOException
+  {
+    flushKey ();
+    if (pos < limit) {
+      int lg = Math.min (len, limit - pos);
+      System.arraycopy (window, pos, data, off, lg);
+      pos += lg;
+      hashed = pos;
+      return lg;
+    }
+
+    return in.read (data, off, len);
+  }
+
+  /* === Decoding ========================================================== */
+
   private int readU29 () 
       throws IOException
+  { 
+    long value = readU64 ();
+    if (value > Integer.MAX_VALUE)
+      throw new IOException ("Beam length overflow");
+    return (int)value;
+  }
+
+  private long readU64 () 
+      throws IOException
   { 
     int k = 0;
-    int value = 0;
+    long value = 0;
     for (;;) {
-      int digits = in.read ();
-      key.update ((byte)digits);
-      value |= (digits & 0x7f) << k;
+      int digits = readByte ();
+      if (digits < 0)
+        throw new EOFException ();
+      if (k > 63)
+        throw new IOException ("Beam length overflow");
+      value |= (long)(digits & 0x7f) << k;
       if ((digits & 0x80) == 0x80) {
         k += 7;
         continue;
@@ -70,41 +280,59 @@ public class BeamIn
   public String readLabel () 
       throws IOException
   {
+    if (headerOnly && pos == limit && !fill (1))
+      return null;
+
     int length = readU29 ();
     if (length <= 0)
       return null;
-    byte[] buffer = new byte[length];
-    in.read(buffer, 0, length);
-    key.update (buffer, 0, length);
-    return new String (buffer);
+
+    if (length > window.length) {
+      byte[] data = new byte[length];
+      readFully (data, length);
+      hash (data, 0, length);
+      return new String (data);
+    }
+
+    if (!fill (length))
+      throw new EOFException ();
+    String label = BeamHelper.lookupLabel (window, pos, length);
+    if (label == null)
+      label = new String (window, pos, length);
+    pos += length;
+    return label;
+  }
+
+  private void readFully (byte[] data, int length)
+      throws IOException
+  {
+    int off = 0;
+    while (off < length) {
+      int lg = readRaw (data, off, length - off);
+      if (lg <= 0)
+        throw new EOFException ();
+      off += lg;
+    }
   }
 
   private int readMark (int mark1, int mark2) 
       throws IOException, BeamFormatException
   {
-    in.mark (1);
-    int mark = in.read ();
+    if (!fill (1))
+      throw new BeamFormatException(); 
+    int mark = window[pos] & 0xff;
     if (mark != mark1 && mark != mark2) {
-      in.reset();
       throw new BeamFormatException(); 
     }
 
-    key.update ((byte)mark);
+    pos++;
     return mark;
   }
 
   private int readMark (int mark1) 
       throws IOException, BeamFormatException
   {
-    in.mark (1);
-    int mark = in.read ();
-    if (mark != mark1) {
-      in.reset();
-      throw new BeamFormatException(); 
-    }
-
-    key.update ((byte)mark);
-    return mark;
+    return readMark (mark1, mark1);
   }
 
   public void readObject ()
@@ -130,10 +358,11 @@ public class BeamIn
       throws IOException, BeamFormatException
   {
     readMark (0x03);
-    byte[] buffer = new byte[8];
-    in.read(buffer, 0, 8);
-    key.update (buffer, 0, 8);
-    return BeamHelper.bytesToLong(buffer);
+    if (!fill (8))
+      throw new BeamFormatException();
+    long value = BeamHelper.bytesToLong (window, pos);
+    pos += 8;
+    return value;
   }
 
   public double readNumber ()
@@ -164,48 +393,72 @@ public class BeamIn
     readMark (0x05);
     int lg = readU29();
     byte data[] = new byte [lg];
-    in.read(data, 0, lg);
-    key.update (data, 0, lg);
+    readFully (data, lg);
+    hash (data, 0, lg);
     return data;
   }
 
   public void readFile (File raw)
       throws IOException, BeamFormatException
   {
-    readMark (0x05);
-    int len;
-    int rest = readU29();
-
-    byte buffer[] = new byte [1000];
-    OutputStream out = new FileOutputStream(raw);
-
-    while(rest > 0) {
-      if (rest > 1000) {
-        len = in.read(buffer);
-        key.update (buffer, 0, 1000);
-      } else {
-        len = in.read(buffer, 0, rest);
-        key.update (buffer, 0, rest);
-      }
-      
-      if (len <=0 ) {
-        out.close ();
+    FileChannel ch = new FileOutputStream(raw).getChannel();
+    try {
+      readFile (ch);
+    } finally {
+      ch.close ();
+    }
+  }
+
+  public void readFile (FileChannel ch)
+      throws IOException, BeamFormatException
+  {
+    TreeHash tree = null;
+    if (readMark (0x05, 0x0a) == 0x0a)
+      tree = readTree ();
+    long rest = readU64();
+    readChannel (ch, rest, tree);
+    if (tree != null)
+      hash (tree.digest(), 0, 20);
+  }
+
+  private void readChannel (FileChannel ch, long rest, TreeHash tree)
+      throws IOException, BeamFormatException
+  {
+    byte[] buf = getBuffer ();
+    ByteBuffer bb = ByteBuffer.wrap(buf);
+
+    while (rest > 0) {
+      int len = readRaw(buf, 0, (int)Math.min(rest, buf.length));
+      if (len <= 0) {
         throw new BeamFormatException();
       }
+
+      if (tree != null)
+        tree.update (buf, 0, len);
+      else
+        hash (buf, 0, len);
+      bb.clear();
+      bb.limit(len);
+      while (bb.hasRemaining())
+        ch.write(bb);
       rest -= len;
-      out.write(buffer, 0, len);
     }
+  }
 
-    out.close ();
+  private byte[] getBuffer ()
+  {
+    if (buffer == null)
+      buffer = new byte[BeamHelper.BUFFER_SIZE];
+    return buffer;
   }
 
   public void readPass () 
       throws BeamFormatException, IOException
   {
-    int rest = 0;
+    long rest = 0;
     int len;
-    int mark = in.read();
-    key.update((byte)mark);
+    TreeHash tree = null;
+    int mark = readByte();
 
     switch (mark) {
       case 0x00: // NULL 
@@ -223,30 +476,125 @@ public class BeamIn
 
       case 0x06: // STRING
       case 0x05: // BYTES
-        rest = readU29();
+        rest = readU64();
+        break;
+
+      case 0x0a: // TREE
+        tree = readTree ();
+        rest = readU64();
         break;
 
       case 0x08: // Array
       case 0x09: // Object
+        while (readLabel () != null)
+          readPass ();
+        break;
+
+      default:
         throw new BeamFormatException();
     }
 
+    if (rest <= limit - pos && tree == null) {
+      pos += (int)rest;
+      return;
+    }
 
-    byte buffer[] = new byte [1000];
-    while(rest > 0) {
-      if (rest > 1000) {
-        len = in.read(buffer);
-        key.update (buffer, 0, 1000);
-      } else {
-        len = in.read(buffer, 0, rest);
-        key.update (buffer, 0, rest);
-      }
-      
-      if (len <=0 ) {
+    byte[] buf = getBuffer ();
+    while (rest > 0) {
+      len = readRaw(buf, 0, (int)Math.min(rest, buf.length));
+      if (len <= 0) {
         throw new BeamFormatException();
       }
+      if (tree != null)
+        tree.update (buf, 0, len);
+      else
+        hash (buf, 0, len);
       rest -= len;
     }
+
+    if (tree != null)
+      hash (tree.digest(), 0, 20);
+  }
+
+  /* === Messages ========================================================== */
+
+  /**
+   * Drop what is left of the current message, the next read starts on 
+   * the following one.
+   */
+  public void endMessage ()
+      throws IOException
+  {
+    pos = limit = hashed = 0;
+    if (stream != null)
+      stream.endMessage ();
+  }
+
+  /**
+   * Wait for the next message, false if the connection has been closed.
+   */
+  public boolean next ()
+      throws IOException
+  {
+    pos = limit = hashed = 0;
+    return stream != null && stream.next ();
+  }
+
+  /**
+   * Copy the raw payload sent after the current message. 
+   */
+  public void readPayload (File raw, long length)
+      throws IOException
+  {
+    endMessage ();
+    byte[] buf = getBuffer ();
+    OutputStream out = new FileOutputStream (raw);
+    try {
+      while (length > 0) {
+        int lg = stream.readRaw (buf, 0, (int)Math.min (length, buf.length));
+        if (lg < 0)
+          throw new EOFException ();
+        pace (lg);
+        out.write (buf, 0, lg);
+        length -= lg;
+      }
+    } finally {
+      out.close ();
+    }
+  }
+
+  /**
+   * Read a raw payload of `length` bytes in memory.
+   */
+  public void readPayload (byte[] data, int length)
+      throws IOException
+  {
+    endMessage ();
+    int off = 0;
+    while (off < length) {
+      int lg = stream.readRaw (data, off, length - off);
+      if (lg < 0)
+        throw new EOFException ();
+      pace (lg);
+      off += lg;
+    }
+  }
+
+  /**
+   * Raw payloads are read at the pace these buckets allow.
+   */
+  public void setBuckets (TokenBucket... buckets)
+  {
+    this.buckets = buckets;
+  }
+
+  private void pace (long bytes)
+      throws IOException
+  {
+    if (buckets == null)
+      return;
+    for (TokenBucket bucket : buckets)
+      bucket.take (bytes);
   }
 
   public void close () 
@@ -257,6 +605,9 @@ public class BeamIn
 
   public String commit () 
   {
+    if (key == null)
+      return null;
+    flushKey ();
     byte[] hash = key.digest ();
     return BeamHelper.bytesToString (hash);
   }
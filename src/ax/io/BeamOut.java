@@ -19,34 +19,87 @@ package ax.io;
 
 import java.io.*;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.Date;
+import java.util.zip.Deflater;
 import java.util.zip.DeflaterOutputStream;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 
 public class BeamOut
 {
-  private DeflaterOutputStream out;
+  private OutputStream out;
+  private DeflaterOutputStream body;
+  private Deflater deflater;
+  private OutputStream file;
+  private BeamCodec codec;
+  private ByteArrayOutputStream header;
   private MessageDigest key;
+  private byte[] buffer;
+  private int leafSize;
 
+  /**
+   * Records are written with an uncompressed header holding every field
+   * up to the first bulk one, so metadata can be read without inflating 
+   * the content.
+   */
   public BeamOut(File data) 
       throws FileNotFoundException
   {
-    this.out = new DeflaterOutputStream(new FileOutputStream(data));
+    this (data, BeamCodec.getDefault());
+  }
+
+  public BeamOut(File data, BeamCodec codec) 
+      throws FileNotFoundException
+  {
+    this.file = new FileOutputStream(data);
+    this.codec = codec;
+    this.header = new ByteArrayOutputStream();
+    this.out = this.header;
     try {
     this.key = MessageDigest.getInstance("SHA1");
     } catch (NoSuchAlgorithmException e) {
     }
   }
 
+  /**
+   * Write messages on a connection, each flush() ends one deflated 
+   * message. Nothing is hashed on this side.
+   */
   public BeamOut(OutputStream data) 
       throws FileNotFoundException
   {
-    this.out = new DeflaterOutputStream(data);
-    try {
-    this.key = MessageDigest.getInstance("SHA1");
-    } catch (NoSuchAlgorithmException e) {
-    }
+    this.deflater = new Deflater();
+    this.body = new DeflaterOutputStream(data, 
+        this.deflater, BeamHelper.BUFFER_SIZE);
+    this.out = this.body;
+  }
+
+  /**
+   * Content larger than one leaf is written as a TREE field, its hash is
+   * computed as a Merkle tree on several cores.
+   */
+  public void setLeafSize (int leafSize) 
+  {
+    this.leafSize = leafSize;
+  }
+
+  private void beginBody ()
+      throws IOException
+  {
+    if (header == null)
+      return;
+
+    DataOutputStream dout = new DataOutputStream(file);
+    dout.write (BeamHelper.RECORD_MAGIC);
+    dout.writeByte (codec.getId());
+    dout.writeByte (codec.getLevel());
+    dout.writeInt (header.size());
+    header.writeTo (dout);
+    header = null;
+
+    out = codec.encode (file);
   }
 
   public void writeOpenObject (String tag) 
@@ -65,27 +118,39 @@ public class BeamOut
   private void writeByte (int value)
       throws IOException
   {
-    key.update ((byte)(value & 0xff));
+    if (key != null)
+      key.update ((byte)(value & 0xff));
     out.write ((byte)value & 0xff);
   }
 
   private void writeBytes (byte[] data, int length)
       throws IOException
   {
-    key.update (data, 0, length);
+    if (key != null)
+      key.update (data, 0, length);
     out.write (data, 0, length);
   }
 
   private void writeU29 (int value) 
       throws IOException
+  {
+    writeU64 (value);
+  }
+
+  /**
+   * Same encoding as U29, but lengths of bytes and files can go past 
+   * Integer.MAX_VALUE.
+   */
+  private void writeU64 (long value) 
+      throws IOException
   {
     for (;;) {
-      int d = value >> 7;
+      long d = value >> 7;
       if (value <= 0) {
-        writeByte (value & 0x7f);
+        writeByte ((int)(value & 0x7f));
         return;
       } else {
-        writeByte ((value & 0x7f) | 0x80);
+        writeByte ((int)(value & 0x7f) | 0x80);
         value = d;
       }
     }
@@ -158,6 +223,7 @@ public class BeamOut
   public void writeBytes (String label, byte[] bytes)
       throws IOException
   {
+    beginBody ();
     writeLabel (label);
     writeByte (0x05);
     writeU29 (bytes.length);
@@ -167,40 +233,106 @@ public class BeamOut
   public void writeFile (String label, File raw)
       throws IOException
   {
-    byte[] buffer = new byte[1000];
-    int lg = (int)raw.length();
-    if (raw.length () > Integer.MAX_VALUE) {
-      throw new IOException ("File is too big");
+    FileChannel ch = new FileInputStream(raw).getChannel();
+    try {
+      writeFile (label, ch, 0, ch.size());
+    } finally {
+      ch.close();
     }
-    writeLabel (label);
-    writeByte (0x05);
-    writeU29 (lg);
+  }
 
-    InputStream in = new FileInputStream(raw);
-    while((lg = in.read(buffer)) > 0) {
-      writeBytes(buffer, lg);
+  public void writeFile (String label, FileChannel ch, long offset, long lg)
+      throws IOException
+  {
+    TreeHash tree = null;
+    beginBody ();
+    writeLabel (label);
+    if (leafSize > 0 && lg > leafSize && key != null) {
+      writeByte (0x0a);
+      writeU29 (leafSize);
+      tree = new TreeHash (leafSize);
+    } else {
+      writeByte (0x05);
     }
 
-    in.close();
+    writeU64 (lg);
+    ch.position (offset);
+    writeChannel (ch, lg, tree);
+    if (tree != null)
+      key.update (tree.digest());
   }
 
+  private void writeChannel (FileChannel ch, long rest, TreeHash tree) 
+      throws IOException
+  {
+    if (buffer == null)
+      buffer = new byte[BeamHelper.BUFFER_SIZE];
+    ByteBuffer bb = ByteBuffer.wrap(buffer);
+
+    while (rest > 0) {
+      bb.clear();
+      if (rest < buffer.length)
+        bb.limit((int)rest);
+      int lg = ch.read(bb);
+      if (lg <= 0)
+        throw new IOException ("File truncated while writing");
+      if (tree != null) {
+        tree.update (buffer, 0, lg);
+        out.write (buffer, 0, lg);
+      } else {
+        writeBytes(buffer, lg);
+      }
+      rest -= lg;
+    }
+  }
+
+
+  /**
+   * Copy an already encoded Beam stream, as given by BeamIn.openStream,
+   * the first `headerSize` bytes going to the header. The record is not
+   * hashed, it must be checked once written.
+   */
+  public void writeStream (InputStream data, int headerSize)
+      throws IOException
+  {
+    if (buffer == null)
+      buffer = new byte[BeamHelper.BUFFER_SIZE];
+    key = null;
+
+    int lg;
+    while (headerSize > 0 &&
+        (lg = data.read (buffer, 0, Math.min (headerSize, buffer.length))) > 0) {
+      out.write (buffer, 0, lg);
+      headerSize -= lg;
+    }
+
+    beginBody ();
+    while ((lg = data.read (buffer)) > 0)
+      out.write (buffer, 0, lg);
+  }
 
-  public void close () 
+  public void close ()
       throws IOException
   {
+    beginBody ();
     out.close ();
   }
 
   public void flush() 
       throws IOException
   {
-    this.out.finish();
-    this.out.flush();
+    if (this.deflater.getBytesRead() == 0)
+      return;
+    this.body.finish();
+    this.body.flush();
+    this.deflater.reset();
   }
 
 
   public String commit () 
   {
+    if (key == null)
+      return null;
     byte[] hash = key.digest ();
     return BeamHelper.bytesToString (hash);
   }
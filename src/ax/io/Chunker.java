@@ -0,0 +1,101 @@
+/*
+      pbox - personnal/private cloud box
+    Copyright (C) 2014 <Fabien Bavent>
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package ax.io;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Split a file into content-defined chunks using a gear rolling hash.
+ * Boundaries only depend on the surrounding bytes, so an edit only 
+ * changes the chunks around it.
+ */
+public class Chunker
+{
+  public static final int MIN_SIZE = 256 * 1024;
+  public static final int AVG_SIZE = 1024 * 1024;
+  public static final int MAX_SIZE = 4 * 1024 * 1024;
+
+  // Test the high bits, they depend on a 64 bytes window
+  private static final long MASK = (long)(AVG_SIZE - 1) 
+      << (64 - Integer.numberOfTrailingZeros(AVG_SIZE));
+  private static final long[] GEAR = new long[256];
+
+  static {
+    // Table must be the same on every node, use a fixed seed
+    long seed = 0x7062786368756e6bL;
+    for (int i = 0; i < 256; ++i) {
+      seed += 0x9e3779b97f4a7c15L;
+      long z = seed;
+      z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+      z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+      GEAR[i] = z ^ (z >>> 31);
+    }
+  }
+
+  private FileChannel ch;
+  private ByteBuffer buffer;
+  private long offset;
+
+  public Chunker (FileChannel ch)
+  {
+    this.ch = ch;
+    this.buffer = ByteBuffer.allocate(BeamHelper.BUFFER_SIZE);
+    this.buffer.limit(0);
+    this.offset = 0;
+  }
+
+  public long getOffset ()
+  {
+    return this.offset;
+  }
+
+  /**
+   * Return the length of the next chunk, starting at getOffset(), or 
+   * zero once the whole file has been split.
+   */
+  public long next ()
+      throws IOException
+  {
+    long hash = 0;
+    long lg = 0;
+    long pos = this.offset + buffer.remaining();
+    
+    for (;;) {
+      if (!buffer.hasRemaining()) {
+        buffer.clear();
+        int rd = ch.read(buffer, pos);
+        buffer.flip();
+        if (rd <= 0)
+          break;
+        pos += rd;
+      }
+
+      int b = buffer.get() & 0xff;
+      lg++;
+      hash = (hash << 1) + GEAR[b];
+      if (lg >= MAX_SIZE || (lg >= MIN_SIZE && (hash & MASK) == 0))
+        break;
+    }
+
+    this.offset += lg;
+    return lg;
+  }
+}
+
@@ -0,0 +1,217 @@
+/*
+      pbox - personnal/private cloud box
+    Copyright (C) 2014 <Fabien Bavent>
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package ax.io;
+
+import java.io.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+
+/**
+ * rsync like delta between two versions of a record. The receiver sends 
+ * the signature of the version it holds (a rolling checksum and a short
+ * strong hash per block), the sender answers with copies of those blocks
+ * and the literal data in between.
+ */
+public class Delta
+{
+  public static final int MIN_BLOCK = 1024;
+  public static final int MAX_BLOCK = 64 * 1024;
+  // Rolling checksum and first bytes of the SHA1 of each block
+  public static final int SIGNATURE_SIZE = 12;
+
+  public interface Ops
+  {
+    /** Copy `count` blocks of the base, starting at `block`. */
+    void copy (int block, int count) throws IOException;
+    /** Append literal bytes. */
+    void data (byte[] data, int off, int len) throws IOException;
+  }
+
+  /**
+   * About the square root of the length, as rsync does.
+   */
+  public static int blockSize (long length)
+  {
+    int size = (int)Math.sqrt ((double)length) & ~7;
+    return Math.max (MIN_BLOCK, Math.min (MAX_BLOCK, size));
+  }
+
+  private static int weak (byte[] data, int off, int len)
+  {
+    int a = 0;
+    int b = 0;
+    for (int i = 0; i < len; ++i) {
+      a += data[off + i] & 0xff;
+      b += (len - i) * (data[off + i] & 0xff);
+    }
+    return (a & 0xffff) | (b << 16);
+  }
+
+  private static long strong (MessageDigest md, byte[] data, int off, int len)
+  {
+    md.update (data, off, len);
+    return BeamHelper.bytesToLong (md.digest ());
+  }
+
+  private static MessageDigest newDigest ()
+  {
+    try {
+      return MessageDigest.getInstance ("SHA1");
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException (e);
+    }
+  }
+
+  /**
+   * Signature of every full block of the base.
+   */
+  public static byte[] signature (byte[] base, int length, int blockSize)
+  {
+    MessageDigest md = newDigest ();
+    int count = length / blockSize;
+    byte[] sig = new byte[count * SIGNATURE_SIZE];
+    for (int i = 0; i < count; ++i) {
+      int off = i * blockSize;
+      int w = weak (base, off, blockSize);
+      long s = strong (md, base, off, blockSize);
+      for (int j = 0; j < 4; ++j)
+        sig[i * SIGNATURE_SIZE + j] = (byte)(w >>> (24 - 8 * j));
+      for (int j = 0; j < 8; ++j)
+        sig[i * SIGNATURE_SIZE + 4 + j] = (byte)(s >>> (56 - 8 * j));
+    }
+    return sig;
+  }
+
+  /**
+   * Describe `target` as copies of the base blocks listed in `signature`
+   * and literal data.
+   */
+  public static void diff (byte[] target, int length, byte[] signature, 
+      int blockSize, Ops ops)
+      throws IOException
+  {
+    HashMap<Integer, List<Integer>> blocks = new HashMap<Integer, List<Integer>> ();
+    int count = signature.length / SIGNATURE_SIZE;
+    for (int i = 0; i < count; ++i) {
+      int w = (int)(BeamHelper.bytesToLong (signature, i * SIGNATURE_SIZE) >>> 32);
+      List<Integer> list = blocks.get (w);
+      if (list == null) {
+        list = new ArrayList<Integer> (1);
+        blocks.put (w, list);
+      }
+      list.add (i);
+    }
+
+    MessageDigest md = newDigest ();
+    int literal = 0;
+    int copyStart = -1;
+    int copyCount = 0;
+    int pos = 0;
+    int a = 0;
+    int b = 0;
+    boolean fresh = true;
+
+    while (pos + blockSize <= length) {
+      if (fresh) {
+        a = 0;
+        b = 0;
+        for (int i = 0; i < blockSize; ++i) {
+          a += target[pos + i] & 0xff;
+          b += (blockSize - i) * (target[pos + i] & 0xff);
+        }
+        fresh = false;
+      }
+
+      int match = -1;
+      List<Integer> list = blocks.get ((a & 0xffff) | (b << 16));
+      if (list != null) {
+        long s = strong (md, target, pos, blockSize);
+        for (int idx : list) {
+          if (BeamHelper.bytesToLong (signature, idx * SIGNATURE_SIZE + 4) == s) {
+            match = idx;
+            break;
+          }
+        }
+      }
+
+      if (match < 0) {
+        // Roll one byte forward
+        int out = target[pos] & 0xff;
+        int in = pos + blockSize < length ? target[pos + blockSize] & 0xff : 0;
+        a = a - out + in;
+        b = b - blockSize * out + a;
+        pos++;
+        continue;
+      }
+
+      if (literal < pos) {
+        if (copyCount > 0)
+          ops.copy (copyStart, copyCount);
+        copyCount = 0;
+        emit (ops, target, literal, pos);
+      }
+      if (copyCount > 0 && match == copyStart + copyCount) {
+        copyCount++;
+      } else {
+        if (copyCount > 0)
+          ops.copy (copyStart, copyCount);
+        copyStart = match;
+        copyCount = 1;
+      }
+      pos += blockSize;
+      literal = pos;
+      fresh = true;
+    }
+
+    if (copyCount > 0)
+      ops.copy (copyStart, copyCount);
+    emit (ops, target, literal, length);
+  }
+
+  private static void emit (Ops ops, byte[] data, int from, int to)
+      throws IOException
+  {
+    while (from < to) {
+      int lg = Math.min (to - from, BeamHelper.BUFFER_SIZE);
+      ops.data (data, from, lg);
+      from += lg;
+    }
+  }
+
+  /**
+   * Read a whole stream in memory, null if longer than `max` bytes.
+   */
+  public static byte[] readAll (InputStream in, int max)
+      throws IOException
+  {
+    ByteArrayOutputStream out = new ByteArrayOutputStream ();
+    byte[] buf = new byte[BeamHelper.BUFFER_SIZE];
+    try {
+      int lg;
+      while ((lg = in.read (buf)) > 0) {
+        if (out.size() + lg > max)
+          return null;
+        out.write (buf, 0, lg);
+      }
+    } finally {
+      in.close ();
+    }
+    return out.toByteArray ();
+  }
+}
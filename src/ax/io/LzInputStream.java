@@ -0,0 +1,172 @@
+/*
+      pbox - personnal/private cloud box
+    Copyright (C) 2014 <Fabien Bavent>
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package ax.io;
+
+import java.io.*;
+
+/**
+ * Decode a stream written by LzOutputStream.
+ */
+public class LzInputStream extends FilterInputStream
+{
+  private byte[] block;
+  private byte[] packed;
+  private int pos;
+  private int limit;
+  private boolean eof;
+
+  public LzInputStream (InputStream in)
+  {
+    super (in);
+    this.block = new byte[LzOutputStream.BLOCK_SIZE];
+    this.packed = new byte[LzOutputStream.BLOCK_SIZE];
+  }
+
+  @Override
+  public int read ()
+      throws IOException
+  {
+    if (pos == limit && !readBlock ())
+      return -1;
+    return block[pos++] & 0xff;
+  }
+
+  @Override
+  public int read (byte[] data, int off, int len)
+      throws IOException
+  {
+    if (len == 0)
+      return 0;
+    if (pos == limit && !readBlock ())
+      return -1;
+    int lg = Math.min (len, limit - pos);
+    System.arraycopy (block, pos, data, off, lg);
+    pos += lg;
+    return lg;
+  }
+
+  @Override
+  public int available ()
+  {
+    return limit - pos;
+  }
+
+  @Override
+  public boolean markSupported ()
+  {
+    return false;
+  }
+
+  private int readInt ()
+      throws IOException
+  {
+    int value = 0;
+    for (int i = 0; i < 4; ++i) {
+      int b = in.read ();
+      if (b < 0)
+        throw new EOFException ();
+      value = value << 8 | b;
+    }
+    return value;
+  }
+
+  private void readFully (byte[] data, int len)
+      throws IOException
+  {
+    int off = 0;
+    while (off < len) {
+      int lg = in.read (data, off, len - off);
+      if (lg < 0)
+        throw new EOFException ();
+      off += lg;
+    }
+  }
+
+  private boolean readBlock ()
+      throws IOException
+  {
+    if (eof)
+      return false;
+
+    int raw = readInt ();
+    if (raw == 0) {
+      eof = true;
+      return false;
+    }
+
+    int stored = readInt ();
+    if (raw > block.length || (stored & 0x7fffffff) > packed.length)
+      throw new IOException ("Corrupted LZ block");
+
+    if ((stored & 0x80000000) != 0) {
+      readFully (block, raw);
+    } else {
+      readFully (packed, stored);
+      decompress (packed, stored, block, raw);
+    }
+
+    pos = 0;
+    limit = raw;
+    return true;
+  }
+
+  private static int readCount (byte[] src, int[] ip, int count)
+  {
+    if (count < 15)
+      return count;
+    int b;
+    do {
+      b = src[ip[0]++] & 0xff;
+      count += b;
+    } while (b == 255);
+    return count;
+  }
+
+  private static void decompress (byte[] src, int n, byte[] dst, int raw)
+      throws IOException
+  {
+    int[] ip = { 0 };
+    int op = 0;
+    try {
+      for (;;) {
+        int token = src[ip[0]++] & 0xff;
+        int lit = readCount (src, ip, token >>> 4);
+        System.arraycopy (src, ip[0], dst, op, lit);
+        ip[0] += lit;
+        op += lit;
+        if (op >= raw)
+          break;
+
+        int offset = (src[ip[0]] & 0xff) | (src[ip[0] + 1] & 0xff) << 8;
+        ip[0] += 2;
+        int ml = readCount (src, ip, token & 0x0f) + LzOutputStream.MIN_MATCH;
+        int ref = op - offset;
+        if (offset == 0 || ref < 0 || op + ml > raw)
+          throw new IOException ("Corrupted LZ block");
+        for (int i = 0; i < ml; ++i)
+          dst[op++] = dst[ref++];
+      }
+    } catch (IndexOutOfBoundsException e) {
+      throw new IOException ("Corrupted LZ block");
+    }
+
+    if (op != raw || ip[0] != n)
+      throw new IOException ("Corrupted LZ block");
+  }
+}
+
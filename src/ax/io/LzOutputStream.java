@@ -0,0 +1,201 @@
+/*
+      pbox - personnal/private cloud box
+    Copyright (C) 2014 <Fabien Bavent>
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package ax.io;
+
+import java.io.*;
+
+/**
+ * Fast LZ77 compression, in the spirit of LZ4. Data is cut in blocks of 
+ * 64 KB, each written as: raw length, stored length (high bit set when the
+ * block is stored uncompressed) and the sequences. A zero raw length ends
+ * the stream.
+ *
+ * A sequence is a token (literal count << 4 | match length - 4), literal 
+ * count extension, literals, a 2-byte offset and match length extension. 
+ * Counts of 15 or more continue on extra bytes, each 255 meaning more.
+ */
+public class LzOutputStream extends FilterOutputStream
+{
+  static final int BLOCK_SIZE = 64 * 1024;
+  static final int MIN_MATCH = 4;
+  private static final int HASH_BITS = 14;
+  private static final int LAST_LITERALS = 5;
+
+  private byte[] block;
+  private byte[] packed;
+  private int[] table;
+  private int fill;
+  private boolean finished;
+
+  public LzOutputStream (OutputStream out)
+  {
+    super (out);
+    this.block = new byte[BLOCK_SIZE];
+    this.packed = new byte[BLOCK_SIZE + BLOCK_SIZE / 255 + 16];
+    this.table = new int[1 << HASH_BITS];
+  }
+
+  @Override
+  public void write (int b)
+      throws IOException
+  {
+    if (fill == block.length)
+      writeBlock ();
+    block[fill++] = (byte)b;
+  }
+
+  @Override
+  public void write (byte[] data, int off, int len)
+      throws IOException
+  {
+    while (len > 0) {
+      if (fill == block.length)
+        writeBlock ();
+      int lg = Math.min (len, block.length - fill);
+      System.arraycopy (data, off, block, fill, lg);
+      fill += lg;
+      off += lg;
+      len -= lg;
+    }
+  }
+
+  @Override
+  public void flush ()
+      throws IOException
+  {
+    if (fill > 0)
+      writeBlock ();
+    out.flush ();
+  }
+
+  public void finish ()
+      throws IOException
+  {
+    if (finished)
+      return;
+    if (fill > 0)
+      writeBlock ();
+    writeInt (0);
+    finished = true;
+  }
+
+  @Override
+  public void close ()
+      throws IOException
+  {
+    finish ();
+    out.close ();
+  }
+
+  private void writeInt (int value)
+      throws IOException
+  {
+    out.write (value >>> 24);
+    out.write (value >>> 16);
+    out.write (value >>> 8);
+    out.write (value);
+  }
+
+  private void writeBlock ()
+      throws IOException
+  {
+    int lg = compress (block, fill, packed);
+    writeInt (fill);
+    if (lg < 0 || lg >= fill) {
+      writeInt (fill | 0x80000000);
+      out.write (block, 0, fill);
+    } else {
+      writeInt (lg);
+      out.write (packed, 0, lg);
+    }
+    fill = 0;
+  }
+
+  private static int readInt (byte[] data, int i)
+  {
+    return (data[i] & 0xff) | (data[i + 1] & 0xff) << 8 | 
+        (data[i + 2] & 0xff) << 16 | (data[i + 3] & 0xff) << 24;
+  }
+
+  private static int writeCount (byte[] dst, int op, int count)
+  {
+    while (count >= 255) {
+      dst[op++] = (byte)255;
+      count -= 255;
+    }
+    dst[op++] = (byte)count;
+    return op;
+  }
+
+  /**
+   * Return the compressed size, or -1 when it would not fit in dst.
+   */
+  private int compress (byte[] src, int n, byte[] dst)
+  {
+    java.util.Arrays.fill (table, -1);
+    int limit = n - LAST_LITERALS - MIN_MATCH;
+    int anchor = 0;
+    int op = 0;
+    int i = 0;
+
+    while (i < limit) {
+      int seq = readInt (src, i);
+      int h = (seq * 0x9e3779b1) >>> (32 - HASH_BITS);
+      int ref = table[h];
+      table[h] = i;
+      if (ref < 0 || readInt (src, ref) != seq) {
+        i++;
+        continue;
+      }
+
+      int ml = MIN_MATCH;
+      while (i + ml < n - LAST_LITERALS && src[ref + ml] == src[i + ml])
+        ml++;
+
+      if (op + (i - anchor) + (i - anchor) / 255 + 8 > dst.length)
+        return -1;
+      op = writeSequence (dst, op, src, anchor, i - anchor, i - ref, ml);
+      i += ml;
+      anchor = i;
+    }
+
+    if (op + (n - anchor) + (n - anchor) / 255 + 2 > dst.length)
+      return -1;
+    return writeSequence (dst, op, src, anchor, n - anchor, 0, 0);
+  }
+
+  private static int writeSequence (byte[] dst, int op, byte[] src, 
+      int anchor, int lit, int offset, int ml)
+  {
+    int mlc = ml > 0 ? ml - MIN_MATCH : 0;
+    dst[op++] = (byte)(Math.min (lit, 15) << 4 | Math.min (mlc, 15));
+    if (lit >= 15)
+      op = writeCount (dst, op, lit - 15);
+    System.arraycopy (src, anchor, dst, op, lit);
+    op += lit;
+    if (ml == 0)
+      return op;
+
+    dst[op++] = (byte)offset;
+    dst[op++] = (byte)(offset >>> 8);
+    if (mlc >= 15)
+      op = writeCount (dst, op, mlc - 15);
+    return op;
+  }
+}
+
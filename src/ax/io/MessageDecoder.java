@@ -0,0 +1,143 @@
+/*
+      pbox - personnal/private cloud box
+    Copyright (C) 2014 <Fabien Bavent>
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package ax.io;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Assemble deflated messages from the bytes of a non-blocking connection,
+ * as they come. Once decode() returns true, the whole message can be 
+ * read from this stream, usually through a BeamIn.
+ */
+public class MessageDecoder extends InputStream
+{
+  public static final int MAX_MESSAGE = 16 * 1024 * 1024;
+
+  private Inflater inf;
+  private byte[] input;
+  private int inPos;
+  private int inEnd;
+
+  private byte[] msg;
+  private int msgLen;
+  private int rd;
+  private boolean ready;
+
+  public MessageDecoder ()
+  {
+    this.inf = new Inflater ();
+    this.input = new byte[BeamHelper.BUFFER_SIZE];
+    this.msg = new byte[4 * 1024];
+  }
+
+  /**
+   * Append the bytes received from the connection.
+   */
+  public void feed (ByteBuffer src)
+  {
+    int lg = src.remaining();
+    if (inEnd + lg > input.length) {
+      byte[] data = input;
+      if (inEnd - inPos + lg > input.length)
+        data = new byte[Math.max (input.length * 2, inEnd - inPos + lg)];
+      System.arraycopy (input, inPos, data, 0, inEnd - inPos);
+      input = data;
+      inEnd -= inPos;
+      inPos = 0;
+    }
+    src.get (input, inEnd, lg);
+    inEnd += lg;
+  }
+
+  /**
+   * Drop the current message and inflate what has been received, return 
+   * true when the next message is complete.
+   */
+  public boolean decode ()
+      throws IOException
+  {
+    if (ready) {
+      ready = false;
+      msgLen = 0;
+      rd = 0;
+    }
+
+    // The input may have moved since the last call
+    if (inPos < inEnd)
+      inf.setInput (input, inPos, inEnd - inPos);
+
+    try {
+      for (;;) {
+        if (inf.finished()) {
+          inf.reset ();
+          ready = true;
+          return true;
+        }
+        if (inf.needsInput() && inPos == inEnd)
+          return false;
+        if (inf.needsDictionary())
+          throw new IOException ("Unexpected dictionary");
+
+        if (msgLen == msg.length) {
+          if (msg.length >= MAX_MESSAGE)
+            throw new IOException ("Message too large");
+          byte[] data = new byte[msg.length * 2];
+          System.arraycopy (msg, 0, data, 0, msgLen);
+          msg = data;
+        }
+
+        msgLen += inf.inflate (msg, msgLen, msg.length - msgLen);
+        inPos = inEnd - inf.getRemaining();
+      }
+    } catch (DataFormatException e) {
+      throw new IOException (e.getMessage());
+    }
+  }
+
+  @Override
+  public int read ()
+      throws IOException
+  {
+    if (!ready || rd == msgLen)
+      return -1;
+    return msg[rd++] & 0xff;
+  }
+
+  @Override
+  public int read (byte[] data, int off, int len)
+      throws IOException
+  {
+    if (len == 0)
+      return 0;
+    if (!ready || rd == msgLen)
+      return -1;
+    int lg = Math.min (len, msgLen - rd);
+    System.arraycopy (msg, rd, data, off, lg);
+    rd += lg;
+    return lg;
+  }
+
+  @Override
+  public void close ()
+  {
+    inf.end ();
+  }
+}
@@ -0,0 +1,152 @@
+/*
+      pbox - personnal/private cloud box
+    Copyright (C) 2014 <Fabien Bavent>
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package ax.io;
+
+import java.io.*;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Inflate a connection carrying a sequence of deflated messages. Each 
+ * message may be followed by a raw payload which is read as is, without
+ * losing the bytes the inflater already pulled from the connection.
+ */
+public class MessageInputStream extends InputStream
+{
+  private InputStream in;
+  private Inflater inf;
+  private byte[] buf;
+  private int pos;
+  private int end;
+
+  public MessageInputStream (InputStream in)
+  {
+    this.in = in;
+    this.inf = new Inflater ();
+    this.buf = new byte[BeamHelper.BUFFER_SIZE];
+  }
+
+  private boolean fillInput ()
+      throws IOException
+  {
+    if (pos == end) {
+      pos = 0;
+      end = in.read (buf, 0, buf.length);
+      if (end < 0) {
+        end = 0;
+        return false;
+      }
+    }
+    inf.setInput (buf, pos, end - pos);
+    return true;
+  }
+
+  @Override
+  public int read ()
+      throws IOException
+  {
+    byte[] b = new byte[1];
+    return read (b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+  }
+
+  @Override
+  public int read (byte[] data, int off, int len)
+      throws IOException
+  {
+    if (len == 0)
+      return 0;
+
+    try {
+      for (;;) {
+        if (inf.finished())
+          return -1;
+        if (inf.needsInput() && !fillInput ())
+          throw new EOFException ("Connection closed inside a message");
+
+        int lg = inf.inflate (data, off, len);
+        pos = end - inf.getRemaining();
+        if (lg > 0)
+          return lg;
+        if (inf.needsDictionary())
+          throw new IOException ("Unexpected dictionary");
+      }
+    } catch (DataFormatException e) {
+      throw new IOException (e.getMessage());
+    }
+  }
+
+  /**
+   * Skip what is left of the current message, the following read starts 
+   * on the next one.
+   */
+  public void endMessage ()
+      throws IOException
+  {
+    if (inf.getBytesRead() == 0)
+      return;
+
+    byte[] scratch = new byte[512];
+    while (read (scratch, 0, scratch.length) >= 0) {
+    }
+    inf.reset ();
+  }
+
+  /**
+   * Wait for the next message, return false if the connection is closed 
+   * instead.
+   */
+  public boolean next ()
+      throws IOException
+  {
+    endMessage ();
+    if (pos == end) {
+      pos = 0;
+      end = in.read (buf, 0, buf.length);
+      if (end < 0) {
+        end = 0;
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Read bytes of a raw payload sent after the end of a message.
+   */
+  public int readRaw (byte[] data, int off, int len)
+      throws IOException
+  {
+    endMessage ();
+    if (pos < end) {
+      int lg = Math.min (len, end - pos);
+      System.arraycopy (buf, pos, data, off, lg);
+      pos += lg;
+      return lg;
+    }
+    return in.read (data, off, len);
+  }
+
+  @Override
+  public void close ()
+      throws IOException
+  {
+    inf.end ();
+    in.close ();
+  }
+}
+
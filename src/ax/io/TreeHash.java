@@ -0,0 +1,145 @@
+/*
+      pbox - personnal/private cloud box
+    Copyright (C) 2014 <Fabien Bavent>
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package ax.io;
+
+import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Merkle hash over fixed-size leaves. Leaves are hashed on the fork-join
+ * pool while the caller keeps streaming, then combined into a root.
+ */
+public class TreeHash
+{
+  public static final int LEAF_SIZE = 256 * 1024;
+  // Leaf sizes read from a record must stay in this range
+  public static final int MIN_LEAF_SIZE = 4 * 1024;
+  public static final int MAX_LEAF_SIZE = 16 * 1024 * 1024;
+
+  private static final ForkJoinPool pool = ForkJoinPool.commonPool();
+  private static final int MAX_PENDING = 2 * pool.getParallelism() + 2;
+
+  private int leafSize;
+  private byte[] leaf;
+  private int fill;
+  private ArrayDeque<ForkJoinTask<byte[]>> tasks;
+  private List<byte[]> leaves;
+
+  public TreeHash (int leafSize)
+  {
+    if (leafSize < MIN_LEAF_SIZE || leafSize > MAX_LEAF_SIZE)
+      throw new IllegalArgumentException ("Bad leaf size: " + leafSize);
+    this.leafSize = leafSize;
+    this.leaf = new byte[leafSize];
+    this.fill = 0;
+    this.tasks = new ArrayDeque<ForkJoinTask<byte[]>> ();
+    this.leaves = new ArrayList<byte[]> ();
+  }
+
+  public void update (byte[] data, int off, int len)
+  {
+    while (len > 0) {
+      int cap = Math.min (len, leafSize - fill);
+      System.arraycopy (data, off, leaf, fill, cap);
+      fill += cap;
+      off += cap;
+      len -= cap;
+      if (fill == leafSize)
+        submit ();
+    }
+  }
+
+  private void submit ()
+  {
+    final byte[] data = leaf;
+    final int lg = fill;
+    tasks.add (pool.submit (new Callable<byte[]>() {
+      public byte[] call () {
+        return hashLeaf (data, 0, lg);
+      }
+    }));
+    leaf = new byte[leafSize];
+    fill = 0;
+
+    // Bound the memory held by leaves waiting for a worker
+    while (tasks.size() > MAX_PENDING) {
+      leaves.add (tasks.removeFirst().join());
+    }
+  }
+
+  public byte[] digest ()
+  {
+    if (fill > 0 || leaves.isEmpty() && tasks.isEmpty())
+      submit ();
+    leaf = null;
+
+    while (!tasks.isEmpty()) {
+      leaves.add (tasks.removeFirst().join());
+    }
+    return combine (leaves);
+  }
+
+  public List<byte[]> getLeaves ()
+  {
+    return leaves;
+  }
+
+  public static byte[] hashLeaf (byte[] data, int off, int len)
+  {
+    MessageDigest md = newDigest ();
+    md.update ((byte)0x00);
+    md.update (data, off, len);
+    return md.digest ();
+  }
+
+  public static byte[] combine (List<byte[]> leaves)
+  {
+    List<byte[]> level = leaves;
+    while (level.size() > 1) {
+      List<byte[]> next = new ArrayList<byte[]> ((level.size() + 1) / 2);
+      for (int i = 0; i < level.size(); i += 2) {
+        if (i + 1 == level.size()) {
+          next.add (level.get(i));
+          continue;
+        }
+
+        MessageDigest md = newDigest ();
+        md.update ((byte)0x01);
+        md.update (level.get(i));
+        md.update (level.get(i + 1));
+        next.add (md.digest ());
+      }
+      level = next;
+    }
+    return level.get(0);
+  }
+
+  private static MessageDigest newDigest ()
+  {
+    try {
+      return MessageDigest.getInstance("SHA1");
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException (e);
+    }
+  }
+}
+
@@ -0,0 +1,634 @@
+/*
+      pbox - personnal/private cloud box
+    Copyright (C) 2014 <Fabien Bavent>
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package ax.net;
+
+import java.io.*;
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.Executor;
+import ax.io.BeamHelper;
+import ax.io.BeamIn;
+import ax.io.BeamOut;
+
+/**
+ * Several exchanges at once on one connection. Each exchange runs on its
+ * own stream, with its own deflater, and its messages and raw payloads 
+ * are cut in frames tagged with the stream id:
+ *
+ *   u32 stream | u8 flags | u32 length | payload
+ *
+ * The client starts a stream with an OPEN frame. Frames of the streams
+ * are interleaved, so a ping doesn't wait behind a large record. Each 
+ * stream can have WINDOW bytes not yet read by the other end, which 
+ * gives them back with CREDIT frames. A FIN frame ends the stream on 
+ * both sides. A peer sending past its window, or opening more than
+ * MAX_STREAMS streams at once, loses the connection.
+ *
+ * The client opens the connection with the PREAMBLE, a server which 
+ * doesn't answer it the same way only knows plain BeamSockets.
+ */
+public class BeamMux
+{
+  public static final byte[] PREAMBLE = { 'B', 'M', 'u', 'x', 1 };
+  public static final int MAX_FRAME = 16 * 1024;
+  public static final int WINDOW = 1024 * 1024;
+  public static final int MAX_STREAMS = 64;
+
+  private static final int DATA = 0;
+  private static final int FIN = 1;
+  private static final int CREDIT = 2;
+  private static final int OPEN = 3;
+
+  public interface Handler
+  {
+    /**
+     * Serve a stream opened by the client, until it is closed.
+     */
+    void handle (Stream stream);
+  }
+
+  private final Socket socket;
+  private final DataInputStream input;
+  private final DataOutputStream output;
+  private final HashMap<Integer, Stream> streams;
+  private Handler handler;
+  private Executor executor;
+  private String remote;
+  private int nextId = 1;
+  private int opened;
+  private volatile boolean closed;
+  private volatile long lastUse;
+
+  private BeamMux (Socket socket, InputStream input)
+      throws IOException
+  {
+    this.socket = socket;
+    this.input = new DataInputStream(input);
+    this.output = new DataOutputStream(new BufferedOutputStream(
+        socket.getOutputStream(), MAX_FRAME + 16));
+    this.streams = new HashMap<Integer, Stream> ();
+    this.lastUse = System.currentTimeMillis();
+  }
+
+  /**
+   * Open a multiplexed connection, null if the server doesn't answer the
+   * preamble within `timeout` ms.
+   */
+  public static BeamMux connectTo (String hostname, int port, int timeout)
+      throws UnknownHostException, IOException
+  {
+    Socket socket = new Socket(hostname, port);
+    try {
+      socket.setTcpNoDelay (true);
+      socket.getOutputStream().write (PREAMBLE);
+      socket.setSoTimeout (timeout);
+      InputStream input = new BufferedInputStream(socket.getInputStream(), 
+          BeamHelper.BUFFER_SIZE);
+      try {
+        if (!readPreamble (input)) {
+          socket.close ();
+          return null;
+        }
+      } catch (IOException e) {
+        // Closed or reset by a server which took it as a bad message
+        socket.close ();
+        return null;
+      }
+      socket.setSoTimeout (0);
+
+      final BeamMux mux = new BeamMux (socket, input);
+      mux.remote = BeamPool.remoteKey (hostname, port);
+      Thread reader = new Thread (new Runnable () {
+        public void run () {
+          mux.read ();
+        }
+      }, "mux-" + mux.remote);
+      reader.setDaemon (true);
+      reader.start ();
+      return mux;
+    } catch (IOException e) {
+      socket.close ();
+      throw e;
+    }
+  }
+
+  /**
+   * Check if a connection starts with the preamble. If not, nothing is 
+   * consumed from `input`, which must support mark().
+   */
+  public static boolean readPreamble (InputStream input)
+      throws IOException
+  {
+    input.mark (PREAMBLE.length);
+    for (int i = 0; i < PREAMBLE.length; ++i) {
+      if (input.read () != (PREAMBLE[i] & 0xff)) {
+        input.reset ();
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Serve a connection which sent the preamble, on the calling thread. 
+   * The streams opened by the client are given to `handler` through 
+   * `executor`. Returns once the connection is closed or stayed without
+   * stream for `idleTimeout` ms.
+   */
+  public static void serve (Socket socket, InputStream input, Handler handler, 
+      Executor executor, int idleTimeout)
+      throws IOException
+  {
+    BeamMux mux = new BeamMux (socket, input);
+    mux.handler = handler;
+    mux.executor = executor;
+    socket.setSoTimeout (idleTimeout);
+    synchronized (mux.output) {
+      mux.output.write (PREAMBLE);
+      mux.output.flush ();
+    }
+    mux.read ();
+  }
+
+  public String getRemote ()
+  {
+    return this.remote;
+  }
+
+  public long getLastUse ()
+  {
+    return this.lastUse;
+  }
+
+  public boolean isClosed ()
+  {
+    return this.closed;
+  }
+
+  public synchronized int getStreamCount ()
+  {
+    return this.streams.size();
+  }
+
+  /**
+   * Start a new exchange, to be closed once done. Null if MAX_STREAMS 
+   * are already open.
+   */
+  public Stream open ()
+      throws IOException
+  {
+    // Ids are taken in the order the OPEN frames are written
+    synchronized (output) {
+      Stream stream;
+      synchronized (this) {
+        if (closed)
+          throw new SocketException ("Connection closed");
+        if (streams.size() >= MAX_STREAMS)
+          return null;
+        stream = new Stream (this, nextId);
+        stream.previous = opened++;
+        streams.put (nextId, stream);
+        nextId += 2;
+      }
+      output.writeInt (stream.id);
+      output.writeByte (OPEN);
+      output.writeInt (0);
+      return stream;
+    }
+  }
+
+  public void close ()
+  {
+    List<Stream> list;
+    synchronized (this) {
+      closed = true;
+      list = new ArrayList<Stream> (streams.values());
+      streams.clear ();
+    }
+    for (Stream stream : list)
+      stream.finish ();
+    try {
+      socket.close ();
+    } catch (IOException e) {
+    }
+  }
+
+  private void writeFrame (int id, int flags, byte[] data, int off, int len)
+      throws IOException
+  {
+    synchronized (output) {
+      output.writeInt (id);
+      output.writeByte (flags);
+      output.writeInt (len);
+      if (flags == DATA)
+        output.write (data, off, len);
+      output.flush ();
+    }
+    lastUse = System.currentTimeMillis();
+  }
+
+  /**
+   * Dispatch the incoming frames to their streams, until the connection
+   * is closed.
+   */
+  private void read ()
+  {
+    byte[] skip = new byte[MAX_FRAME];
+    try {
+      for (;;) {
+        int id;
+        try {
+          id = input.readInt ();
+        } catch (SocketTimeoutException e) {
+          if (getStreamCount () == 0)
+            break;
+          continue;
+        }
+
+        int flags = input.readUnsignedByte ();
+        int len = input.readInt ();
+        if (flags == DATA && (len < 0 || len > MAX_FRAME))
+          throw new IOException ("Bad frame length " + len);
+        lastUse = System.currentTimeMillis();
+
+        Stream stream = flags == OPEN ? accept (id) : lookup (id);
+        switch (flags) {
+          case DATA:
+            if (stream != null) {
+              byte[] data = new byte[len];
+              input.readFully (data);
+              stream.pipe.push (data);
+            } else {
+              input.readFully (skip, 0, len);
+            }
+            break;
+
+          case CREDIT:
+            if (stream != null)
+              stream.frames.grant (len);
+            break;
+
+          case OPEN:
+            break;
+
+          case FIN:
+            if (stream != null) {
+              synchronized (this) {
+                streams.remove (id);
+              }
+              stream.finish ();
+            }
+            break;
+
+          default:
+            throw new IOException ("Bad frame flags " + flags);
+        }
+      }
+    } catch (EOFException e) {
+    } catch (IOException e) {
+      if (!closed)
+        System.out.format ("[Debug] Multiplexed connection lost: %s\n", e.getMessage());
+    }
+    close ();
+  }
+
+  private synchronized Stream lookup (int id)
+  {
+    return streams.get (id);
+  }
+
+  /**
+   * Start serving a stream the client opened.
+   */
+  private Stream accept (int id)
+      throws IOException
+  {
+    final Stream stream;
+    synchronized (this) {
+      if (handler == null || (id & 1) == 0 || id < nextId)
+        throw new IOException ("Bad stream id " + id);
+      if (streams.size() >= MAX_STREAMS)
+        throw new IOException ("Too many streams");
+      stream = new Stream (this, id);
+      streams.put (id, stream);
+      nextId = id + 2;
+    }
+
+    executor.execute (new Runnable () {
+      public void run () {
+        handler.handle (stream);
+      }
+    });
+    return stream;
+  }
+
+  /* === Streams =========================================================== */
+
+  /**
+   * Bytes received on a stream, waiting to be read.
+   */
+  private static class Pipe extends InputStream
+  {
+    private Stream stream;
+    private ArrayDeque<byte[]> chunks = new ArrayDeque<byte[]> ();
+    private byte[] head;
+    private int pos;
+    private int consumed;
+    // Bytes received and not given back yet, at most WINDOW
+    private int received;
+    private int timeout;
+    private boolean finished;
+
+    synchronized void push (byte[] data)
+        throws IOException
+    {
+      if (finished)
+        return;
+      received += data.length;
+      if (received > WINDOW)
+        throw new IOException ("Stream window exceeded");
+      chunks.add (data);
+      notifyAll ();
+    }
+
+    synchronized void finish ()
+    {
+      finished = true;
+      notifyAll ();
+    }
+
+    @Override
+    public int read ()
+        throws IOException
+    {
+      byte[] b = new byte[1];
+      return read (b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+    }
+
+    @Override
+    public int read (byte[] data, int off, int len)
+        throws IOException
+    {
+      if (len == 0)
+        return 0;
+
+      int lg;
+      int credit = 0;
+      synchronized (this) {
+        long limit = System.currentTimeMillis() + timeout;
+        while ((head == null || pos == head.length) && chunks.isEmpty()) {
+          if (finished)
+            return -1;
+          long wait = timeout == 0 ? 0 : limit - System.currentTimeMillis();
+          if (timeout != 0 && wait <= 0)
+            throw new SocketTimeoutException ("Read timed out");
+          try {
+            wait (wait);
+          } catch (InterruptedException e) {
+            throw new InterruptedIOException ();
+          }
+        }
+
+        if (head == null || pos == head.length) {
+          head = chunks.poll ();
+          pos = 0;
+        }
+        lg = Math.min (len, head.length - pos);
+        System.arraycopy (head, pos, data, off, lg);
+        pos += lg;
+
+        // Give the space back by large steps, not on every read
+        consumed += lg;
+        if (consumed >= WINDOW / 4 && !finished) {
+          credit = consumed;
+          received -= consumed;
+          consumed = 0;
+        }
+      }
+
+      if (credit > 0)
+        stream.mux.writeFrame (stream.id, CREDIT, null, 0, credit);
+      return lg;
+    }
+  }
+
+  /**
+   * Cut what a stream writes in frames, waiting for the other end to 
+   * have room for them.
+   */
+  private static class Frames extends OutputStream
+  {
+    private Stream stream;
+    private byte[] buf = new byte[MAX_FRAME];
+    private int count;
+    private int credit = WINDOW;
+    private boolean finished;
+
+    synchronized void grant (int lg)
+    {
+      credit += lg;
+      notifyAll ();
+    }
+
+    synchronized void finish ()
+    {
+      finished = true;
+      notifyAll ();
+    }
+
+    @Override
+    public void write (int b)
+        throws IOException
+    {
+      if (count == buf.length)
+        flush ();
+      buf[count++] = (byte)b;
+    }
+
+    @Override
+    public void write (byte[] data, int off, int len)
+        throws IOException
+    {
+      while (len > 0) {
+        if (count == buf.length)
+          flush ();
+        int lg = Math.min (len, buf.length - count);
+        System.arraycopy (data, off, buf, count, lg);
+        count += lg;
+        off += lg;
+        len -= lg;
+      }
+    }
+
+    @Override
+    public void flush ()
+        throws IOException
+    {
+      if (count == 0)
+        return;
+
+      synchronized (this) {
+        while (credit < count && !finished) {
+          try {
+            wait ();
+          } catch (InterruptedException e) {
+            throw new InterruptedIOException ();
+          }
+        }
+        if (finished)
+          throw new SocketException ("Stream closed");
+        credit -= count;
+      }
+      stream.mux.writeFrame (stream.id, DATA, buf, 0, count);
+      count = 0;
+    }
+  }
+
+  /**
+   * One exchange on a multiplexed connection, used as a BeamSocket.
+   */
+  public static class Stream extends BeamSocket
+  {
+    final BeamMux mux;
+    final int id;
+    final Pipe pipe;
+    final Frames frames;
+    private int previous;
+    private boolean closed;
+
+    private Stream (BeamMux mux, int id)
+        throws IOException
+    {
+      this (mux, id, new Pipe (), new Frames ());
+    }
+
+    private Stream (BeamMux mux, int id, Pipe pipe, Frames frames)
+        throws IOException
+    {
+      super (mux.socket, new BeamIn (pipe), new BeamOut (frames));
+      this.mux = mux;
+      this.id = id;
+      this.pipe = pipe;
+      this.frames = frames;
+      pipe.stream = this;
+      frames.stream = this;
+    }
+
+    void finish ()
+    {
+      pipe.finish ();
+      frames.finish ();
+      synchronized (this) {
+        closed = true;
+      }
+    }
+
+    @Override
+    public String getRemote ()
+    {
+      return mux.remote;
+    }
+
+    /**
+     * Streams opened on the connection before this one count, it is the
+     * connection which may have been lost.
+     */
+    @Override
+    public int getUses ()
+    {
+      return previous + super.getUses();
+    }
+
+    @Override
+    public int getTimeout ()
+    {
+      synchronized (pipe) {
+        return pipe.timeout;
+      }
+    }
+
+    @Override
+    public void setTimeout (int timeout)
+    {
+      synchronized (pipe) {
+        pipe.timeout = timeout;
+      }
+    }
+
+    @Override
+    public void send ()
+        throws IOException
+    {
+      in.endMessage ();
+      out.flush ();
+      frames.flush ();
+      sent ();
+    }
+
+    @Override
+    public void sendRaw (File fp, long offset, long length)
+        throws IOException
+    {
+      send ();
+      RandomAccessFile raf = new RandomAccessFile (fp, "r");
+      try {
+        byte[] buf = new byte[MAX_FRAME];
+        raf.seek (offset);
+        while (length > 0) {
+          int lg = raf.read (buf, 0, (int)Math.min (length, buf.length));
+          if (lg <= 0)
+            throw new EOFException ("File truncated while sending");
+          pace (lg);
+          frames.write (buf, 0, lg);
+          frames.flush ();
+          length -= lg;
+        }
+      } finally {
+        raf.close ();
+      }
+    }
+
+    public boolean isClosed ()
+    {
+      synchronized (this) {
+        return closed;
+      }
+    }
+
+    /**
+     * End the stream, the connection stays open for the others.
+     */
+    @Override
+    public void close ()
+        throws IOException
+    {
+      synchronized (this) {
+        if (closed)
+          return;
+        closed = true;
+      }
+      synchronized (mux) {
+        mux.streams.remove (id);
+      }
+      pipe.finish ();
+      frames.finish ();
+      if (!mux.isClosed ())
+        mux.writeFrame (id, FIN, null, 0, 0);
+    }
+  }
+}
@@ -0,0 +1,246 @@
+/*
+      pbox - personnal/private cloud box
+    Copyright (C) 2014 <Fabien Bavent>
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package ax.net;
+
+import java.io.*;
+import java.net.*;
+import java.util.*;
+
+/**
+ * Keep connections to the remotes open between requests. A connection 
+ * is borrowed with acquire() for one exchange and given back with 
+ * release(), or discard() if the exchange failed half-way.
+ *
+ * Remotes which accept it get a single multiplexed connection, the 
+ * exchanges run on streams of it, which are kept between requests the 
+ * same way.
+ */
+public class BeamPool
+{
+  public static final int IDLE_TIMEOUT = 60 * 1000;
+  public static final int CHECK_AFTER = 5 * 1000;
+  public static final int CHECK_TIMEOUT = 3 * 1000;
+  public static final int MAX_IDLE = 8;
+
+  private HashMap<String, ArrayDeque<BeamSocket>> idle;
+  private HashMap<String, BeamMux> muxes;
+  private HashSet<String> plain;
+  private boolean multiplex = true;
+  private int idleTimeout = IDLE_TIMEOUT;
+  private int checkAfter = CHECK_AFTER;
+  private int maxIdle = MAX_IDLE;
+
+  public BeamPool ()
+  {
+    this.idle = new HashMap<String, ArrayDeque<BeamSocket>> ();
+    this.muxes = new HashMap<String, BeamMux> ();
+    this.plain = new HashSet<String> ();
+  }
+
+  public static String remoteKey (String hostname, int port)
+  {
+    return hostname + ":" + port;
+  }
+
+  /**
+   * Connections not used for `timeout` ms are closed.
+   */
+  public void setIdleTimeout (int timeout)
+  {
+    this.idleTimeout = timeout;
+  }
+
+  /**
+   * Number of idle connections kept per remote, 0 opens a new 
+   * connection for every exchange.
+   */
+  public void setMaxIdle (int maxIdle)
+  {
+    this.maxIdle = maxIdle;
+  }
+
+  /**
+   * Open a connection per exchange instead of streams on a shared one.
+   */
+  public void setMultiplex (boolean multiplex)
+  {
+    this.multiplex = multiplex;
+  }
+
+  /**
+   * Take an open connection to the remote, or open a new one. A 
+   * connection which stayed idle for a while is pinged before being 
+   * handed out.
+   */
+  public BeamSocket acquire (String hostname, int port)
+      throws UnknownHostException, IOException
+  {
+    String key = remoteKey (hostname, port);
+    for (;;) {
+      BeamSocket beam = poll (key);
+      if (beam == null)
+        break;
+
+      long since = System.currentTimeMillis() - beam.getLastUse();
+      if (since < checkAfter || beam.ping (CHECK_TIMEOUT))
+        return beam;
+      System.out.format ("[Debug] Drop stale connection to %s\n", key);
+      discard (beam);
+    }
+
+    if (multiplex) {
+      BeamSocket stream = openStream (hostname, port, key);
+      if (stream != null)
+        return stream;
+    }
+    return BeamSocket.connectTo (hostname, port);
+  }
+
+  /**
+   * A new stream on the connection to the remote, null if it only knows
+   * plain connections or its connection has no room for another stream.
+   */
+  private BeamSocket openStream (String hostname, int port, String key)
+      throws UnknownHostException, IOException
+  {
+    BeamMux mux;
+    synchronized (this) {
+      if (plain.contains (key))
+        return null;
+      mux = muxes.get (key);
+    }
+
+    if (mux != null && !mux.isClosed()) {
+      BeamSocket stream = mux.open ();
+      if (stream == null)
+        return null;
+      long since = System.currentTimeMillis() - mux.getLastUse();
+      if (since < checkAfter || stream.ping (CHECK_TIMEOUT))
+        return stream;
+      System.out.format ("[Debug] Drop stale connection to %s\n", key);
+      mux.close ();
+    }
+
+    mux = BeamMux.connectTo (hostname, port, CHECK_TIMEOUT);
+    BeamMux extra = null;
+    synchronized (this) {
+      if (mux == null) {
+        System.out.format ("[Debug] No multiplexing with %s\n", key);
+        plain.add (key);
+        return null;
+      }
+
+      // Another thread may have connected meanwhile
+      BeamMux prev = muxes.get (key);
+      if (prev != null && !prev.isClosed()) {
+        extra = mux;
+        mux = prev;
+      } else {
+        muxes.put (key, mux);
+      }
+    }
+
+    if (extra != null)
+      extra.close ();
+    return mux.open ();
+  }
+
+  private synchronized BeamSocket poll (String key)
+  {
+    evict ();
+    ArrayDeque<BeamSocket> list = idle.get (key);
+    if (list == null)
+      return null;
+    // The most recent is the most likely to be alive
+    return list.pollFirst ();
+  }
+
+  /**
+   * Give back a connection after a complete exchange.
+   */
+  public void release (BeamSocket beam)
+  {
+    if (beam.socket.isClosed() || beam.getRemote() == null ||
+        (beam instanceof BeamMux.Stream && ((BeamMux.Stream)beam).isClosed())) {
+      discard (beam);
+      return;
+    }
+
+    BeamSocket extra = null;
+    synchronized (this) {
+      evict ();
+      ArrayDeque<BeamSocket> list = idle.get (beam.getRemote());
+      if (list == null) {
+        list = new ArrayDeque<BeamSocket> ();
+        idle.put (beam.getRemote(), list);
+      }
+
+      list.addFirst (beam);
+      if (list.size() > maxIdle)
+        extra = list.pollLast ();
+    }
+
+    if (extra != null)
+      discard (extra);
+  }
+
+  /**
+   * Close a connection which is not in a known state anymore.
+   */
+  public void discard (BeamSocket beam)
+  {
+    try {
+      beam.close ();
+    } catch (IOException e) {
+    }
+  }
+
+  /**
+   * Close the idle connections which timed out. The least recently 
+   * used are at the end of each list.
+   */
+  private synchronized void evict ()
+  {
+    long limit = System.currentTimeMillis() - idleTimeout;
+    for (ArrayDeque<BeamSocket> list : idle.values()) {
+      while (!list.isEmpty() && list.peekLast().getLastUse() < limit) {
+        discard (list.pollLast ());
+      }
+    }
+
+    Iterator<BeamMux> it = muxes.values().iterator();
+    while (it.hasNext()) {
+      BeamMux mux = it.next ();
+      if (mux.isClosed() || (mux.getLastUse() < limit && mux.getStreamCount() == 0)) {
+        mux.close ();
+        it.remove ();
+      }
+    }
+  }
+
+  public synchronized void close ()
+  {
+    for (ArrayDeque<BeamSocket> list : idle.values()) {
+      while (!list.isEmpty())
+        discard (list.pollFirst ());
+    }
+    for (BeamMux mux : muxes.values())
+      mux.close ();
+    muxes.clear ();
+  }
+}
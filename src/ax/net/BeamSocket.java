@@ -20,8 +20,14 @@ package ax.net;
 import java.util.zip.*;
 import java.io.*;
 import java.net.*;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+import ax.io.BeamHelper;
 import ax.io.BeamIn;
 import ax.io.BeamOut;
+import ax.util.TokenBucket;
 
 public class BeamSocket
 {
@@ -29,33 +35,184 @@ public class BeamSocket
   public final BeamOut out;
   public final Socket socket;
 
+  private String remote;
+  private long lastUse;
+  private int uses;
+  private TokenBucket[] buckets;
+
   public BeamSocket(Socket socket) 
       throws IOException
+  {
+    this (socket, socket.getInputStream());
+  }
+
+  /**
+   * Read from `input`, the socket stream or a buffer on top of it which
+   * already looked at the first bytes.
+   */
+  public BeamSocket(Socket socket, InputStream input) 
+      throws IOException
   {
     this.socket = socket;
-    this.in = new BeamIn(socket.getInputStream());
+    this.in = new BeamIn(input);
     this.out = new BeamOut(socket.getOutputStream());
+    this.lastUse = System.currentTimeMillis();
+  }
+
+  protected BeamSocket(Socket socket, BeamIn in, BeamOut out) 
+  {
+    this.socket = socket;
+    this.in = in;
+    this.out = out;
+    this.lastUse = System.currentTimeMillis();
   }
 
   public static BeamSocket connectTo (String hostname, int port) 
       throws UnknownHostException, IOException
   {
-    Socket kkSocket = new Socket(hostname, port);
-    return new BeamSocket (kkSocket);
+    // Opened as a channel, raw payloads are sent straight from the file
+    InetSocketAddress address = new InetSocketAddress(hostname, port);
+    if (address.isUnresolved())
+      throw new UnknownHostException(hostname);
+    Socket kkSocket = SocketChannel.open(address).socket();
+    kkSocket.setTcpNoDelay (true);
+    BeamSocket beam = new BeamSocket (kkSocket);
+    beam.remote = BeamPool.remoteKey (hostname, port);
+    return beam;
+  }
+
+  /**
+   * The "host:port" this socket has been opened to, null on the 
+   * accepting side.
+   */
+  public String getRemote ()
+  {
+    return this.remote;
+  }
+
+  public long getLastUse ()
+  {
+    return this.lastUse;
+  }
+
+  /**
+   * Number of messages sent on this connection.
+   */
+  public int getUses ()
+  {
+    return this.uses;
+  }
+
+  /**
+   * Raw payloads sent and received on this socket are limited by these
+   * buckets, messages are not.
+   */
+  public void setBuckets (TokenBucket... buckets)
+  {
+    this.buckets = buckets;
+    this.in.setBuckets (buckets);
+  }
+
+  /**
+   * Wait until `bytes` of bulk data can be sent.
+   */
+  public void pace (long bytes)
+      throws IOException
+  {
+    if (buckets == null)
+      return;
+    for (TokenBucket bucket : buckets)
+      bucket.take (bytes);
+  }
+
+  /**
+   * Time a read waits for the other end, in ms, 0 waits forever.
+   */
+  public int getTimeout ()
+      throws IOException
+  {
+    return this.socket.getSoTimeout();
+  }
+
+  public void setTimeout (int timeout)
+      throws IOException
+  {
+    this.socket.setSoTimeout (timeout);
+  }
+
+  /**
+   * Check the other end still answers, waiting at most `timeout` ms.
+   */
+  public boolean ping (int timeout)
+  {
+    try {
+      int prev = getTimeout ();
+      setTimeout (timeout);
+      try {
+        this.out.writeString ("ping", null);
+        send ();
+        String res = this.in.readLabel ();
+        this.in.readPass ();
+        return "pong".equals (res);
+      } finally {
+        setTimeout (prev);
+      }
+    } catch (Exception e) {
+      return false;
+    }
   }
 
   public static BeamSocket listen (ServerSocket serverSocket) 
       throws IOException
   {
     Socket clientSocket = serverSocket.accept();
+    clientSocket.setTcpNoDelay (true);
     return new BeamSocket (clientSocket);
   }
 
   public void send() 
       throws IOException
   {
+    this.in.endMessage();
     this.out.flush();
     this.socket.getOutputStream().flush();
+    sent ();
+  }
+
+  protected void sent ()
+  {
+    this.lastUse = System.currentTimeMillis();
+    this.uses++;
+  }
+
+  /**
+   * Send the current message followed by `length` bytes of a file, as 
+   * they are on disk. The kernel copies them when the socket was opened
+   * as a channel, through a buffer otherwise.
+   */
+  public void sendRaw (File fp, long offset, long length) 
+      throws IOException
+  {
+    send ();
+    WritableByteChannel dest = this.socket.getChannel();
+    if (dest == null)
+      dest = Channels.newChannel(this.socket.getOutputStream());
+
+    FileChannel ch = new FileInputStream(fp).getChannel();
+    try {
+      while (length > 0) {
+        long slice = buckets == null ? length : Math.min (length, BeamHelper.BUFFER_SIZE);
+        pace (slice);
+        long lg = ch.transferTo (offset, slice, dest);
+        if (lg <= 0)
+          throw new EOFException ("File truncated while sending");
+        offset += lg;
+        length -= lg;
+      }
+    } finally {
+      ch.close ();
+    }
+    this.socket.getOutputStream().flush();
   }
 
   public void close ()
@@ -0,0 +1,429 @@
+/*
+      pbox - personnal/private cloud box
+    Copyright (C) 2014 <Fabien Bavent>
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package ax.net;
+
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import ax.io.BeamFormatException;
+import ax.io.BeamHelper;
+import ax.io.BeamIn;
+import ax.io.BeamOut;
+import ax.io.MessageDecoder;
+
+/**
+ * Serve Beam connections with a few selector threads. Incoming bytes are
+ * inflated as they arrive and a request is handed to a worker once its 
+ * message is complete. Responses, including raw records, are queued and
+ * written by the selector as the connection accepts them, so a slow 
+ * peer doesn't hold a thread.
+ */
+public class NioServer
+{
+  private static final int SWEEP_PERIOD = 1000;
+
+  public interface Handler
+  {
+    /**
+     * Read one request from beam.in, then write and send() the response.
+     */
+    void handle (BeamSocket beam) throws IOException, BeamFormatException;
+  }
+
+  private int port;
+  private Handler handler;
+  private Executor workers;
+  private Loop[] loops;
+  private int idleTimeout = 5 * 60 * 1000;
+
+  /**
+   * The requests are handled on `workers`, the selector threads only
+   * read and write.
+   */
+  public NioServer (int port, int threads, Executor workers, Handler handler)
+  {
+    this.port = port;
+    this.workers = workers;
+    this.handler = handler;
+    this.loops = new Loop[Math.max (1, threads)];
+  }
+
+  /**
+   * Connections without any traffic for `timeout` ms are closed.
+   */
+  public void setIdleTimeout (int timeout)
+  {
+    this.idleTimeout = timeout;
+  }
+
+  /**
+   * Accept connections forever and spread them over the event loops.
+   */
+  public void listen ()
+      throws IOException
+  {
+    ServerSocketChannel server = ServerSocketChannel.open ();
+    try {
+      server.socket().setReuseAddress (true);
+      server.bind (new InetSocketAddress (port));
+      for (int i = 0; i < loops.length; ++i) {
+        if (loops[i] == null) {
+          loops[i] = new Loop ();
+          Thread th = new Thread (loops[i], "NioServer-" + port + "-" + i);
+          th.setDaemon (true);
+          th.start ();
+        }
+      }
+
+      for (int next = 0; ; next = (next + 1) % loops.length) {
+        SocketChannel ch = server.accept ();
+        ch.configureBlocking (false);
+        ch.socket().setTcpNoDelay (true);
+        loops[next].add (ch);
+      }
+    } finally {
+      server.close ();
+    }
+  }
+
+  /* === Connection ======================================================== */
+
+  /**
+   * A part of a response waiting for the connection to be writable.
+   */
+  private static class Output
+  {
+    private ByteBuffer data;
+    private FileChannel file;
+    private long pos;
+    private long end;
+
+    Output (ByteBuffer data)
+    {
+      this.data = data;
+    }
+
+    Output (FileChannel file, long pos, long length)
+    {
+      this.file = file;
+      this.pos = pos;
+      this.end = pos + length;
+    }
+
+    /**
+     * Write as much as possible, return true once everything is sent.
+     */
+    boolean write (SocketChannel ch)
+        throws IOException
+    {
+      if (data != null) {
+        ch.write (data);
+        return !data.hasRemaining();
+      }
+
+      while (pos < end) {
+        long lg = file.transferTo (pos, end - pos, ch);
+        if (lg == 0) {
+          if (pos >= file.size())
+            throw new EOFException ("File truncated while sending");
+          return false;
+        }
+        pos += lg;
+      }
+      return true;
+    }
+
+    void close ()
+    {
+      if (file != null) {
+        try {
+          file.close ();
+        } catch (IOException e) {
+        }
+      }
+    }
+  }
+
+  private static class Connection extends BeamSocket
+  {
+    final SocketChannel channel;
+    final MessageDecoder decoder;
+    final ByteArrayOutputStream capture;
+    final ArrayDeque<Output> queue;
+    long lastActivity;
+    // A worker handles a request, the selector leaves the connection 
+    // alone until it is done
+    boolean busy;
+    boolean failed;
+
+    Connection (SocketChannel channel)
+        throws IOException
+    {
+      this (channel, new MessageDecoder (), new ByteArrayOutputStream ());
+    }
+
+    private Connection (SocketChannel channel, MessageDecoder decoder, 
+        ByteArrayOutputStream capture)
+        throws IOException
+    {
+      super (channel.socket(), new BeamIn (decoder), new BeamOut (capture));
+      this.channel = channel;
+      this.decoder = decoder;
+      this.capture = capture;
+      this.queue = new ArrayDeque<Output> ();
+      this.lastActivity = System.currentTimeMillis();
+    }
+
+    @Override
+    public void send ()
+        throws IOException
+    {
+      in.endMessage ();
+      out.flush ();
+      if (capture.size() > 0) {
+        queue.add (new Output (ByteBuffer.wrap (capture.toByteArray())));
+        capture.reset ();
+      }
+    }
+
+    @Override
+    public void sendRaw (File fp, long offset, long length)
+        throws IOException
+    {
+      send ();
+      FileChannel ch = new FileInputStream (fp).getChannel();
+      queue.add (new Output (ch, offset, length));
+    }
+
+    /**
+     * Write the queued responses, return true once all are sent.
+     */
+    boolean flushQueue ()
+        throws IOException
+    {
+      while (!queue.isEmpty()) {
+        if (!queue.peekFirst().write (channel))
+          return false;
+        queue.pollFirst().close ();
+        lastActivity = System.currentTimeMillis();
+      }
+      return true;
+    }
+
+    @Override
+    public void close ()
+    {
+      for (Output o : queue)
+        o.close ();
+      queue.clear ();
+      decoder.close ();
+      try {
+        channel.close ();
+      } catch (IOException e) {
+      }
+    }
+  }
+
+  /* === Event loop ======================================================== */
+
+  private class Loop implements Runnable
+  {
+    private Selector selector;
+    private ConcurrentLinkedQueue<SocketChannel> incoming;
+    private ConcurrentLinkedQueue<Connection> handled;
+    private ByteBuffer buffer;
+    private long lastSweep;
+
+    Loop ()
+        throws IOException
+    {
+      this.selector = Selector.open ();
+      this.incoming = new ConcurrentLinkedQueue<SocketChannel> ();
+      this.handled = new ConcurrentLinkedQueue<Connection> ();
+      this.buffer = ByteBuffer.allocateDirect (BeamHelper.BUFFER_SIZE);
+    }
+
+    void add (SocketChannel ch)
+    {
+      incoming.add (ch);
+      selector.wakeup ();
+    }
+
+    public void run ()
+    {
+      for (;;) {
+        try {
+          selector.select (SWEEP_PERIOD);
+          register ();
+          resume ();
+
+          Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+          while (it.hasNext()) {
+            SelectionKey key = it.next();
+            it.remove ();
+            Connection conn = (Connection)key.attachment();
+            try {
+              if (key.isValid() && key.isWritable())
+                write (conn, key);
+              if (key.isValid() && key.isReadable() && !conn.busy)
+                read (conn, key);
+            } catch (BeamFormatException ex) {
+              System.out.format ("[Err.] Web bad request: %s\n", ex.getMessage());
+              conn.close ();
+            } catch (IOException ex) {
+              System.out.format ("[Err.] WebService: %s\n", ex.getMessage());
+              conn.close ();
+            }
+          }
+
+          sweep ();
+        } catch (IOException ex) {
+          System.out.format ("[Err.] NioServer: %s\n", ex.getMessage());
+        }
+      }
+    }
+
+    private void register ()
+    {
+      SocketChannel ch;
+      while ((ch = incoming.poll ()) != null) {
+        try {
+          Connection conn = new Connection (ch);
+          ch.register (selector, SelectionKey.OP_READ, conn);
+        } catch (IOException ex) {
+          System.out.format ("[Err.] WebService: %s\n", ex.getMessage());
+          try {
+            ch.close ();
+          } catch (IOException e) {
+          }
+        }
+      }
+    }
+
+    /**
+     * Send what the workers answered and go on with the next requests.
+     */
+    private void resume ()
+    {
+      Connection conn;
+      while ((conn = handled.poll ()) != null) {
+        conn.busy = false;
+        SelectionKey key = conn.channel.keyFor (selector);
+        if (conn.failed || key == null || !key.isValid()) {
+          conn.close ();
+          continue;
+        }
+        try {
+          conn.lastActivity = System.currentTimeMillis();
+          conn.flushQueue ();
+          process (conn, key);
+        } catch (BeamFormatException ex) {
+          System.out.format ("[Err.] Web bad request: %s\n", ex.getMessage());
+          conn.close ();
+        } catch (IOException ex) {
+          System.out.format ("[Err.] WebService: %s\n", ex.getMessage());
+          conn.close ();
+        }
+      }
+    }
+
+    private void read (Connection conn, SelectionKey key)
+        throws IOException, BeamFormatException
+    {
+      buffer.clear ();
+      int lg = conn.channel.read (buffer);
+      if (lg < 0) {
+        conn.close ();
+        return;
+      }
+
+      buffer.flip ();
+      conn.decoder.feed (buffer);
+      conn.lastActivity = System.currentTimeMillis();
+      process (conn, key);
+    }
+
+    private void write (Connection conn, SelectionKey key)
+        throws IOException, BeamFormatException
+    {
+      if (conn.flushQueue ())
+        process (conn, key);
+    }
+
+    /**
+     * Hand the next complete request to a worker, one at a time: nothing
+     * more is read while a request is handled or its response is still 
+     * waiting to be sent.
+     */
+    private void process (Connection conn, SelectionKey key)
+        throws IOException, BeamFormatException
+    {
+      if (conn.queue.isEmpty() && conn.decoder.decode ()) {
+        conn.in.endMessage ();
+        key.interestOps (0);
+        dispatch (conn);
+        return;
+      }
+
+      key.interestOps (conn.queue.isEmpty() 
+          ? SelectionKey.OP_READ : SelectionKey.OP_WRITE);
+    }
+
+    private void dispatch (final Connection conn)
+    {
+      conn.busy = true;
+      workers.execute (new Runnable () {
+        public void run () {
+          boolean ok = false;
+          try {
+            handler.handle (conn);
+            ok = true;
+          } catch (BeamFormatException ex) {
+            System.out.format ("[Err.] Web bad request: %s\n", ex.getMessage());
+          } catch (IOException ex) {
+            System.out.format ("[Err.] WebService: %s\n", ex.getMessage());
+          } finally {
+            conn.failed = !ok;
+            handled.add (conn);
+            selector.wakeup ();
+          }
+        }
+      });
+    }
+
+    private void sweep ()
+    {
+      long now = System.currentTimeMillis();
+      if (now - lastSweep < SWEEP_PERIOD)
+        return;
+      lastSweep = now;
+
+      for (SelectionKey key : selector.keys()) {
+        Connection conn = (Connection)key.attachment();
+        if (conn != null && !conn.busy && now - conn.lastActivity > idleTimeout) {
+          System.out.format ("[Debug] Close idle connection\n");
+          conn.close ();
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,119 @@
+/*
+      pbox - personnal/private cloud box
+    Copyright (C) 2014 <Fabien Bavent>
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package ax.util;
+
+/**
+ * Bloom filter over digests. The k probes are derived from the first 16
+ * bytes of the key (double hashing) mixed with a seed, so two filters 
+ * built with different seeds don't share their false positives.
+ */
+public class BloomFilter
+{
+  private long[] bits;
+  private int size;
+  private int count;
+  private long seed;
+
+  /**
+   * A filter sized for `expected` keys with a false positive rate of 
+   * `fpp`.
+   */
+  public BloomFilter (int expected, double fpp, long seed)
+  {
+    expected = Math.max (1, expected);
+    double ln2 = Math.log (2);
+    long m = (long)Math.ceil (-expected * Math.log (fpp) / (ln2 * ln2));
+    this.bits = new long[(int)Math.max (1, (m + 63) / 64)];
+    this.size = bits.length * 64;
+    this.count = Math.max (1, (int)Math.round ((double)size / expected * ln2));
+    this.seed = seed;
+  }
+
+  /**
+   * A filter received from elsewhere.
+   */
+  public BloomFilter (byte[] data, int count, long seed)
+  {
+    this.bits = new long[Math.max (1, data.length / 8)];
+    for (int i = 0; i < bits.length && 8 * i + 8 <= data.length; ++i)
+      bits[i] = toLong (data, 8 * i);
+    this.size = bits.length * 64;
+    this.count = Math.max (1, count);
+    this.seed = seed;
+  }
+
+  private static long toLong (byte[] data, int off)
+  {
+    long value = 0;
+    for (int i = 0; i < 8; ++i)
+      value = (value << 8) | (data[off + i] & 0xff);
+    return value;
+  }
+
+  private static long mix (long z)
+  {
+    z = (z ^ (z >>> 33)) * 0xff51afd7ed558ccdL;
+    z = (z ^ (z >>> 33)) * 0xc4ceb9fe1a85ec53L;
+    return z ^ (z >>> 33);
+  }
+
+  public void add (byte[] key)
+  {
+    long h1 = mix (toLong (key, 0) ^ seed);
+    long h2 = mix (toLong (key, 8) + seed) | 1;
+    for (int i = 0; i < count; ++i) {
+      int bit = (int)(((h1 + i * h2) >>> 1) % size);
+      bits[bit >>> 6] |= 1L << bit;
+    }
+  }
+
+  public boolean mightContain (byte[] key)
+  {
+    long h1 = mix (toLong (key, 0) ^ seed);
+    long h2 = mix (toLong (key, 8) + seed) | 1;
+    for (int i = 0; i < count; ++i) {
+      int bit = (int)(((h1 + i * h2) >>> 1) % size);
+      if ((bits[bit >>> 6] & (1L << bit)) == 0)
+        return false;
+    }
+    return true;
+  }
+
+  public int getHashCount ()
+  {
+    return count;
+  }
+
+  public long getSeed ()
+  {
+    return seed;
+  }
+
+  public byte[] toBytes ()
+  {
+    byte[] data = new byte[bits.length * 8];
+    for (int i = 0; i < bits.length; ++i) {
+      long x = bits[i];
+      for (int j = 7; j >= 0; --j) {
+        data[8 * i + j] = (byte)x;
+        x >>>= 8;
+      }
+    }
+    return data;
+  }
+}
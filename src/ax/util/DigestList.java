@@ -0,0 +1,93 @@
+/*
+      pbox - personnal/private cloud box
+    Copyright (C) 2014 <Fabien Bavent>
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package ax.util;
+
+import java.util.*;
+
+/**
+ * Sorted list of 20 bytes digests, packed in a single array and searched
+ * by dichotomy. This is the exact counterpart of a BloomFilter.
+ */
+public class DigestList
+{
+  public static final int DIGEST_SIZE = 20;
+
+  private byte[] data;
+  private int count;
+
+  public DigestList (List<byte[]> digests)
+  {
+    List<byte[]> sorted = new ArrayList<byte[]> (digests);
+    Collections.sort (sorted, new Comparator<byte[]> () {
+      public int compare (byte[] a, byte[] b) {
+        return DigestList.compare (a, 0, b, 0);
+      }
+    });
+
+    this.count = sorted.size();
+    this.data = new byte[count * DIGEST_SIZE];
+    for (int i = 0; i < count; ++i)
+      System.arraycopy (sorted.get(i), 0, data, i * DIGEST_SIZE, DIGEST_SIZE);
+  }
+
+  /**
+   * A list received from elsewhere, already sorted.
+   */
+  public DigestList (byte[] packed)
+  {
+    this.data = packed;
+    this.count = packed.length / DIGEST_SIZE;
+  }
+
+  private static int compare (byte[] a, int aOff, byte[] b, int bOff)
+  {
+    for (int i = 0; i < DIGEST_SIZE; ++i) {
+      int d = (a[aOff + i] & 0xff) - (b[bOff + i] & 0xff);
+      if (d != 0)
+        return d;
+    }
+    return 0;
+  }
+
+  public boolean contains (byte[] key)
+  {
+    int lo = 0;
+    int hi = count - 1;
+    while (lo <= hi) {
+      int mid = (lo + hi) >>> 1;
+      int d = compare (data, mid * DIGEST_SIZE, key, 0);
+      if (d < 0)
+        lo = mid + 1;
+      else if (d > 0)
+        hi = mid - 1;
+      else
+        return true;
+    }
+    return false;
+  }
+
+  public int size ()
+  {
+    return count;
+  }
+
+  public byte[] toBytes ()
+  {
+    return data;
+  }
+}
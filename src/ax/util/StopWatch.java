@@ -29,18 +29,22 @@ public class StopWatch {
 
   public void start () 
   {
-    chrono = System.currentTimeMillis();
+    chrono = System.nanoTime();
   }
 
   public void stop () 
   {
-    long now = System.currentTimeMillis();
+    long now = System.nanoTime();
     elapsed = now - chrono;
   }
 
   public long getMillis()
+  {
+    return elapsed / 1000000L;
+  }
+
+  public long getNanos()
   {
     return elapsed;
   }
 }
-
@@ -0,0 +1,101 @@
+/*
+      pbox - personnal/private cloud box
+    Copyright (C) 2014 <Fabien Bavent>
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package ax.util;
+
+import java.io.InterruptedIOException;
+
+/**
+ * Limit a flow of bytes to `rate` bytes per second, with bursts of up to
+ * `burst` bytes. A take larger than what is left puts the bucket in debt,
+ * the caller and the following ones wait until it is paid back.
+ */
+public class TokenBucket 
+{
+  private long rate;
+  private long burst;
+  private double tokens;
+  private long last;
+
+  public TokenBucket (long rate, long burst) 
+  {
+    this.rate = rate;
+    this.burst = burst;
+    this.tokens = burst;
+    this.last = System.nanoTime();
+  }
+
+  /**
+   * A burst of a quarter of second, but not less than 64 KiB.
+   */
+  public TokenBucket (long rate) 
+  {
+    this (rate, Math.max (rate / 4, 64 * 1024));
+  }
+
+  public synchronized long getRate ()
+  {
+    return this.rate;
+  }
+
+  /**
+   * Parse a rate in bytes per second, with an optional k, m or g suffix.
+   */
+  public static long parseRate (String value)
+  {
+    String v = value.trim().toLowerCase();
+    long unit = 1;
+    switch (v.charAt (v.length() - 1)) {
+      case 'k': unit = 1024L; break;
+      case 'm': unit = 1024L * 1024L; break;
+      case 'g': unit = 1024L * 1024L * 1024L; break;
+    }
+    if (unit > 1)
+      v = v.substring (0, v.length() - 1);
+    return (long)(Double.parseDouble (v) * unit);
+  }
+
+  /**
+   * Time to wait, in ms, before `bytes` more bytes can go.
+   */
+  private synchronized long reserve (long bytes)
+  {
+    long now = System.nanoTime();
+    tokens = Math.min (burst, tokens + (now - last) * (double)rate / 1e9);
+    last = now;
+    tokens -= bytes;
+    if (tokens >= 0)
+      return 0;
+    return (long)Math.ceil (-tokens * 1000.0 / rate);
+  }
+
+  public void take (long bytes)
+      throws InterruptedIOException
+  {
+    if (rate <= 0)
+      return;
+
+    long wait = reserve (bytes);
+    if (wait <= 0)
+      return;
+    try {
+      Thread.sleep (wait);
+    } catch (InterruptedException e) {
+      throw new InterruptedIOException ();
+    }
+  }
+}
@@ -0,0 +1,116 @@
+/*
+      pbox - personnal/private cloud box
+    Copyright (C) 2014 <Fabien Bavent>
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package ax.data;
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * A file saved twice before the outbox sends anything: the remote, 
+ * which only knows the first version, must accept the merged update. 
+ * Once with both saves in the same batch window, once with the second 
+ * save landing while the batch waits to be sent again.
+ */
+public class OutboxTest
+{
+  private static final String H0 = "0000000000000000000000000000000000000000";
+  private static final String H1 = "1111111111111111111111111111111111111111";
+  private static final String H2 = "2222222222222222222222222222222222222222";
+
+  /**
+   * Hand the batches to the test instead of a remote, the first `fails`
+   * of them are refused.
+   */
+  private static class Remote extends WebService
+  {
+    final BlockingQueue<List<Outbox.Change>> sent = 
+        new LinkedBlockingQueue<List<Outbox.Change>> ();
+    int fails;
+
+    Remote (DirectoryMirror dm, int fails)
+    {
+      super (dm);
+      this.fails = fails;
+    }
+
+    public boolean hasRemote () 
+    {
+      return true;
+    }
+
+    public boolean sendBatch (List<Outbox.Change> batch) 
+    {
+      if (fails > 0) {
+        fails--;
+        return false;
+      }
+      sent.add (new ArrayList<Outbox.Change> (batch));
+      return true;
+    }
+  }
+
+  private static boolean check (DirectoryMirror dm, Path top, int fails)
+      throws Exception
+  {
+    Path path = Paths.get ("./file.txt");
+    Remote remote = new Remote (dm, fails);
+    Outbox outbox = new Outbox (remote);
+    Thread th = new Thread (outbox);
+    th.setDaemon (true);
+
+    outbox.update (path, H1, H0, 2, 10, "File");
+    th.start ();
+    if (fails > 0)
+      Thread.sleep (Outbox.FLUSH_DELAY * 2);
+    outbox.update (path, H2, H1, 3, 10, "File");
+
+    List<Outbox.Change> batch = remote.sent.poll (10, TimeUnit.SECONDS);
+    th.interrupt ();
+    if (batch == null || batch.size() != 1) {
+      System.err.format ("[Err.] Expected one change, got %s\n", batch);
+      return false;
+    }
+
+    // The remote saw version 1 only
+    FileEntry en = new FileEntry (path, H0, null, 1, 10, "File", top);
+    en.status = BlobStatus.Saved;
+    Outbox.Change change = batch.get (0);
+    if (!change.hash.equals (H2) || 
+        !en.extern (change.hash, change.parent, change.version, change.length)) {
+      System.err.format ("[Err.] Remote refused %s, parent %s\n", change.hash, change.parent);
+      return false;
+    }
+    return true;
+  }
+
+  public static void main (String[] args)
+      throws Exception
+  {
+    Path top = Files.createTempDirectory ("pbox-test");
+    new File (top.toFile(), ".pbox").mkdirs();
+    DirectoryMirror dm = new DirectoryMirror (top);
+
+    boolean ok = check (dm, top, 0);
+    System.out.format ("[Trace] Same window: %s\n", ok ? "pass" : "FAIL");
+    boolean ok2 = check (dm, top, 1);
+    System.out.format ("[Trace] Sent again: %s\n", ok2 ? "pass" : "FAIL");
+    System.exit (ok && ok2 ? 0 : 1);
+  }
+}